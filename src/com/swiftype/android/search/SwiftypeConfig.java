@@ -12,9 +12,14 @@ import android.content.res.TypedArray;
 import android.database.sqlite.SQLiteQueryBuilder;
 
 import com.swiftype.android.search.helper.SwiftypeDbHelper;
+import com.swiftype.api.search.LatencyBudget;
 import com.swiftype.api.search.SwiftypeQueryOptions;
 
 public class SwiftypeConfig {
+	public static final int PREFETCH_NONE = 0;
+	public static final int PREFETCH_PREFIX = 1;
+	public static final int PREFETCH_TOP_SUGGESTION = 2;
+	
 	private static final ConcurrentHashMap<String, DocumentTypeConfig> documentTypeConfigs = new ConcurrentHashMap<String, SwiftypeConfig.DocumentTypeConfig>();
 	private static SwiftypeQueryOptions options = SwiftypeQueryOptions.DEFAULT;
 	private static SwiftypeQueryOptions suggestOptions = SwiftypeQueryOptions.DEFAULT;
@@ -23,6 +28,20 @@ public class SwiftypeConfig {
 	private static int[] suggestResources;
 	private static int maxResultFieldLength;
 	private static int maxSuggestFieldLength;
+	private static int suggestMinDelay;
+	private static int suggestMaxDelay;
+	private static int suggestMinInterval;
+	private static int searchPrefetch;
+	private static LatencyBudget searchBudget;
+	private static LatencyBudget suggestBudget;
+	private static int analyticsBatchSize;
+	private static int analyticsFlushInterval;
+	private static int analyticsMaxEvents;
+	private static long analyticsMaxAge;
+	private static int cacheMaxRows;
+	private static long cacheMaxBytes;
+	private static long cacheMaxAge;
+	private static int resultCacheRows;
 	private static String[] documentTypeNames;
 	
 	public SwiftypeConfig(final Resources resources) {
@@ -44,6 +63,41 @@ public class SwiftypeConfig {
 			maxResultFieldLength = resources.getInteger(R.integer.max_result_field_length);
 			maxSuggestFieldLength = resources.getInteger(R.integer.max_suggest_field_length);
 			
+			suggestMinDelay = resources.getInteger(R.integer.suggest_min_delay);
+			suggestMaxDelay = resources.getInteger(R.integer.suggest_max_delay);
+			suggestMinInterval = resources.getInteger(R.integer.suggest_min_interval);
+			if (suggestMinDelay > suggestMaxDelay) {
+				throw new IllegalArgumentException("Suggest min delay must not be larger than max delay.");
+			}
+			
+			searchPrefetch = checkSearchPrefetch(resources.getInteger(R.integer.search_prefetch));
+			
+			searchBudget = new LatencyBudget.Builder().deadline(resources.getInteger(R.integer.search_deadline))
+													  .hedgePercentile(resources.getInteger(R.integer.search_hedge_percentile))
+													  .build();
+			suggestBudget = new LatencyBudget.Builder().deadline(resources.getInteger(R.integer.suggest_deadline))
+													   .hedgePercentile(resources.getInteger(R.integer.suggest_hedge_percentile))
+													   .build();
+			
+			analyticsBatchSize = resources.getInteger(R.integer.analytics_batch_size);
+			analyticsFlushInterval = resources.getInteger(R.integer.analytics_flush_interval);
+			analyticsMaxEvents = resources.getInteger(R.integer.analytics_max_events);
+			analyticsMaxAge = resources.getInteger(R.integer.analytics_max_age_hours) * 60L * 60 * 1000;
+			if (analyticsBatchSize < 1 || analyticsMaxEvents < analyticsBatchSize) {
+				throw new IllegalArgumentException("Analytics batch size must be positive and not exceed the max events.");
+			}
+			
+			cacheMaxRows = resources.getInteger(R.integer.cache_max_rows);
+			cacheMaxBytes = resources.getInteger(R.integer.cache_max_kbytes) * 1024L;
+			cacheMaxAge = resources.getInteger(R.integer.cache_max_age_hours) * 60L * 60 * 1000;
+			if (cacheMaxRows < 1 || cacheMaxBytes < 1 || cacheMaxAge < 1) {
+				throw new IllegalArgumentException("Cache limits must be positive.");
+			}
+			resultCacheRows = resources.getInteger(R.integer.result_cache_rows);
+			if (resultCacheRows < 1) {
+				throw new IllegalArgumentException("Result cache rows must be positive.");
+			}
+			
 			final TypedArray documentTypes = resources.obtainTypedArray(R.array.document_types);
 			documentTypeNames = new String[documentTypes.length()];
 			for (int i = 0; i < documentTypes.length(); ++i) {
@@ -126,6 +180,128 @@ public class SwiftypeConfig {
 		return maxSuggestFieldLength;
 	}
 	
+	public int getSuggestMinDelay() {
+		return suggestMinDelay;
+	}
+	
+	public int getSuggestMaxDelay() {
+		return suggestMaxDelay;
+	}
+	
+	public int getSuggestMinInterval() {
+		return suggestMinInterval;
+	}
+	
+	/**
+	 * @return	One of PREFETCH_NONE, PREFETCH_PREFIX or PREFETCH_TOP_SUGGESTION
+	 */
+	public int getSearchPrefetch() {
+		return searchPrefetch;
+	}
+	
+	/**
+	 * @throws IllegalArgumentException	If it isn't one of the PREFETCH_ constants
+	 */
+	public SwiftypeConfig setSearchPrefetch(final int searchPrefetch) {
+		SwiftypeConfig.searchPrefetch = checkSearchPrefetch(searchPrefetch);
+		return this;
+	}
+	
+	private static int checkSearchPrefetch(final int searchPrefetch) {
+		if (searchPrefetch < PREFETCH_NONE || searchPrefetch > PREFETCH_TOP_SUGGESTION) {
+			throw new IllegalArgumentException("Invalid search prefetch: " + searchPrefetch);
+		}
+		return searchPrefetch;
+	}
+	
+	public LatencyBudget getSearchBudget() {
+		return searchBudget;
+	}
+	
+	public SwiftypeConfig setSearchBudget(final LatencyBudget budget) {
+		SwiftypeConfig.searchBudget = budget;
+		return this;
+	}
+	
+	public LatencyBudget getSuggestBudget() {
+		return suggestBudget;
+	}
+	
+	public SwiftypeConfig setSuggestBudget(final LatencyBudget budget) {
+		SwiftypeConfig.suggestBudget = budget;
+		return this;
+	}
+	
+	public int getAnalyticsBatchSize() {
+		return analyticsBatchSize;
+	}
+	
+	/**
+	 * @return	Milliseconds analytics events are queued at most before they are sent
+	 */
+	public int getAnalyticsFlushInterval() {
+		return analyticsFlushInterval;
+	}
+	
+	public int getAnalyticsMaxEvents() {
+		return analyticsMaxEvents;
+	}
+	
+	/**
+	 * @return	Milliseconds after which undelivered analytics events are dropped
+	 */
+	public long getAnalyticsMaxAge() {
+		return analyticsMaxAge;
+	}
+	
+	/**
+	 * @return	Search and suggest rows kept in the cache at most
+	 */
+	public int getCacheMaxRows() {
+		return cacheMaxRows;
+	}
+	
+	public SwiftypeConfig setCacheMaxRows(final int cacheMaxRows) {
+		SwiftypeConfig.cacheMaxRows = cacheMaxRows;
+		return this;
+	}
+	
+	/**
+	 * @return	Bytes of the cache database in use at most
+	 */
+	public long getCacheMaxBytes() {
+		return cacheMaxBytes;
+	}
+	
+	public SwiftypeConfig setCacheMaxBytes(final long cacheMaxBytes) {
+		SwiftypeConfig.cacheMaxBytes = cacheMaxBytes;
+		return this;
+	}
+	
+	/**
+	 * @return	Milliseconds after their last access cached results are evicted
+	 */
+	public long getCacheMaxAge() {
+		return cacheMaxAge;
+	}
+	
+	public SwiftypeConfig setCacheMaxAge(final long cacheMaxAge) {
+		SwiftypeConfig.cacheMaxAge = cacheMaxAge;
+		return this;
+	}
+	
+	/**
+	 * @return	Rows of search and suggest results held in memory at most
+	 */
+	public int getResultCacheRows() {
+		return resultCacheRows;
+	}
+	
+	public SwiftypeConfig setResultCacheRows(final int resultCacheRows) {
+		SwiftypeConfig.resultCacheRows = resultCacheRows;
+		return this;
+	}
+	
 	public String[] getDocumentTypeNames() {
 		return documentTypeNames;
 	}
@@ -142,6 +318,25 @@ public class SwiftypeConfig {
 		return suggestResources;
 	}
 	
+	/**
+	 * Restrict the fields returned by the API to those stored for the configured
+	 * document types, unless the options already specify fetch_fields.
+	 * Only applied to the API request, query hashes still use the original options.
+	 * 
+	 * @param isSuggest		Use the suggest fields instead of the search fields
+	 */
+	public SwiftypeQueryOptions withFetchFields(final SwiftypeQueryOptions options, final boolean isSuggest) {
+		if (options.hasFetchFields()) {
+			return options;
+		}
+		final Map<String, String[]> fetchFields = new HashMap<String, String[]>();
+		for (final String name : documentTypeNames) {
+			final DocumentTypeConfig documentTypeConfig = getDocumentTypeConfig(name);
+			fetchFields.put(name, isSuggest ? documentTypeConfig.getSuggestFields() : documentTypeConfig.getSearchFields());
+		}
+		return options.withFetchFields(fetchFields);
+	}
+	
 	public DocumentTypeConfig getDocumentTypeConfig(final String name) {
 		DocumentTypeConfig config = documentTypeConfigs.get(name);
 		if (config == null) {
@@ -0,0 +1,203 @@
+package com.swiftype.android.search.backend;
+
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.swiftype.android.search.SwiftypeConfig;
+import com.swiftype.android.search.helper.SearchContentProviderHelper;
+import com.swiftype.android.search.helper.SwiftypeDbHelper;
+import com.swiftype.api.search.Engine;
+
+/**
+ * Queues analytics events in the SearchContentProvider, so they survive
+ * the app being killed or the network being down, and sends them in batches
+ * on the background lane of the engine. A batch is sent once enough events
+ * are queued or an alarm fires after the flush interval.
+ */
+class AnalyticsQueue {
+	private static final String LOG_ID = AnalyticsQueue.class.getSimpleName();
+	private static final String ACTION_FLUSH = "com.swiftype.android.search.FLUSH_ANALYTICS";
+	
+	/**
+	 * Events that failed this often are dropped
+	 */
+	private static final int MAX_ATTEMPTS = 5;
+	
+	private static final String[] EVENT_COLUMNS = { SwiftypeDbHelper.COLUMN_ID, SwiftypeDbHelper.COLUMN_PATH, SwiftypeDbHelper.COLUMN_ATTEMPTS };
+	private static final String[] COUNT_COLUMNS = { "COUNT(*)" };
+	private static final String ORDER_OLDEST_FIRST = SwiftypeDbHelper.COLUMN_ID + " ASC";
+	private static final String ID_SELECTION = SwiftypeDbHelper.COLUMN_ID + " = ?";
+	private static final AtomicBoolean flushing = new AtomicBoolean(false);
+	
+	private final Context context;
+	private final ContentResolver resolver;
+	private final SwiftypeConfig config;
+	private final SearchContentProviderHelper helper;
+	
+	public AnalyticsQueue(final Context context, final SwiftypeConfig config, final SearchContentProviderHelper helper) {
+		this.context = context;
+		this.resolver = context.getContentResolver();
+		this.config = config;
+		this.helper = helper;
+	}
+	
+	/**
+	 * Queue an event and send the queued events if a batch is complete
+	 */
+	public void enqueue(final String requestPath, final Engine engine) {
+		if (requestPath == null) {
+			return;
+		}
+		final ContentValues values = new ContentValues();
+		values.put(SwiftypeDbHelper.COLUMN_PATH, requestPath);
+		values.put(SwiftypeDbHelper.COLUMN_TIMESTAMP, new Date().getTime());
+		resolver.insert(helper.analyticsUri, values);
+		
+		if (count() >= config.getAnalyticsBatchSize()) {
+			flush(engine);
+		} else {
+			scheduleFlush();
+		}
+	}
+	
+	/**
+	 * Make sure events queued before the process was killed are sent as well
+	 */
+	public void resume() {
+		if (count() > 0) {
+			scheduleFlush();
+		}
+	}
+	
+	/**
+	 * Send all queued events on the background lane, unless a flush is already running
+	 */
+	public void flush(final Engine engine) {
+		cancelScheduledFlush();
+		if (!flushing.compareAndSet(false, true)) {
+			return;
+		}
+		engine.getExecutor().executeBackground(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					sendQueued(engine);
+				} finally {
+					flushing.set(false);
+				}
+			}
+		});
+	}
+	
+	private void sendQueued(final Engine engine) {
+		final long start = SystemClock.elapsedRealtime();
+		dropExpired();
+		
+		int sent = 0;
+		int rejected = 0;
+		boolean failed = false;
+		while (!failed) {
+			final Cursor cursor = resolver.query(helper.analyticsUri(config.getAnalyticsBatchSize()), EVENT_COLUMNS, null, null, ORDER_OLDEST_FIRST);
+			if (cursor == null) {
+				return;
+			}
+			try {
+				if (cursor.getCount() == 0) {
+					break;
+				}
+				while (cursor.moveToNext()) {
+					final String id = cursor.getString(0);
+					final int outcome = engine.deliverAnalytics(cursor.getString(1));
+					if (outcome == Engine.ANALYTICS_SENT) {
+						resolver.delete(helper.analyticsUri, ID_SELECTION, new String[] { id });
+						++sent;
+					} else if (outcome == Engine.ANALYTICS_REJECTED) {
+						// sending it again can't succeed, so it must not hold up the events behind it
+						resolver.delete(helper.analyticsUri, ID_SELECTION, new String[] { id });
+						++rejected;
+					} else {
+						// offline or the server failed, the remaining events would fail as well
+						final ContentValues values = new ContentValues();
+						values.put(SwiftypeDbHelper.COLUMN_ATTEMPTS, cursor.getInt(2) + 1);
+						resolver.update(helper.analyticsUri, values, ID_SELECTION, new String[] { id });
+						failed = true;
+						break;
+					}
+				}
+			} finally {
+				cursor.close();
+			}
+		}
+		
+		Log.i(LOG_ID, "Sent " + sent + " analytics events in " + (SystemClock.elapsedRealtime() - start) + "ms" + (rejected > 0 ? ", dropped " + rejected + " rejected" : "") + (failed ? ", retrying later" : ""));
+		if (failed) {
+			scheduleFlush();
+		}
+	}
+	
+	/**
+	 * Drop events that are too old, failed too often or exceed the maximum queue size
+	 */
+	private void dropExpired() {
+		final long cutoff = new Date().getTime() - config.getAnalyticsMaxAge();
+		final int dropped = resolver.delete(helper.analyticsUri,
+											SwiftypeDbHelper.COLUMN_TIMESTAMP + " < ? OR " + SwiftypeDbHelper.COLUMN_ATTEMPTS + " >= ? OR " +
+											SwiftypeDbHelper.COLUMN_ID + " NOT IN (SELECT " + SwiftypeDbHelper.COLUMN_ID + " FROM " + SwiftypeDbHelper.TABLE_ANALYTICS_QUEUE +
+											" ORDER BY " + SwiftypeDbHelper.COLUMN_ID + " DESC LIMIT " + config.getAnalyticsMaxEvents() + ")",
+											new String[] { Long.toString(cutoff), Integer.toString(MAX_ATTEMPTS) });
+		if (dropped > 0) {
+			Log.i(LOG_ID, "Dropped " + dropped + " undeliverable analytics events");
+		}
+	}
+	
+	private int count() {
+		final Cursor cursor = resolver.query(helper.analyticsUri, COUNT_COLUMNS, null, null, null);
+		if (cursor == null) {
+			return 0;
+		}
+		try {
+			return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+		} finally {
+			cursor.close();
+		}
+	}
+	
+	/**
+	 * Set an alarm to flush the queue after the flush interval, unless one is set already
+	 */
+	private void scheduleFlush() {
+		if (PendingIntent.getService(context, 0, flushIntent(), PendingIntent.FLAG_NO_CREATE) != null) {
+			return;
+		}
+		final PendingIntent pendingIntent = PendingIntent.getService(context, 0, flushIntent(), 0);
+		final AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+		alarmManager.set(AlarmManager.ELAPSED_REALTIME, SystemClock.elapsedRealtime() + config.getAnalyticsFlushInterval(), pendingIntent);
+	}
+	
+	private void cancelScheduledFlush() {
+		final PendingIntent pendingIntent = PendingIntent.getService(context, 0, flushIntent(), PendingIntent.FLAG_NO_CREATE);
+		if (pendingIntent != null) {
+			final AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+			alarmManager.cancel(pendingIntent);
+			pendingIntent.cancel();
+		}
+	}
+	
+	private Intent flushIntent() {
+		final Intent intent = new Intent(context, SearchService.class);
+		// extras don't distinguish pending intents, the action does
+		intent.setAction(ACTION_FLUSH);
+		intent.putExtra(SearchService.PARAM_REQUEST_TYPE, SearchService.REQUEST_FLUSH_ANALYTICS);
+		return intent;
+	}
+}
@@ -0,0 +1,301 @@
+package com.swiftype.android.search.backend;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.SystemClock;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import com.swiftype.android.search.SwiftypeConfig;
+import com.swiftype.android.search.helper.SwiftypeDbHelper;
+import com.swiftype.api.search.RequestExecutor;
+
+/**
+ * Keeps the cache tables within the configured number of rows, bytes and
+ * age. Cached queries are evicted least recently used first, in small
+ * batches with one transaction each, so readers and writers are never
+ * blocked for long. Runs on the background lane of the engine after results
+ * were stored, at most once per interval.
+ */
+class CacheEvictor {
+	private static final String LOG_ID = CacheEvictor.class.getSimpleName();
+	
+	/**
+	 * Minimum time between two eviction runs
+	 */
+	static final long RUN_INTERVAL = 5 * 60 * 1000;
+	
+	/**
+	 * Accesses are only recorded at this resolution, to avoid a write per read
+	 */
+	private static final long ACCESS_RESOLUTION = 60 * 1000;
+	
+	/**
+	 * Queries evicted per transaction
+	 */
+	private static final int BATCH_SIZE = 20;
+	
+	/**
+	 * Upper bound for the batches of one run, the rest is left for the next run
+	 */
+	private static final int MAX_BATCHES = 50;
+	
+	/**
+	 * Free space worth a VACUUM, in bytes and as a fraction of the database
+	 */
+	private static final long VACUUM_MIN_FREE_BYTES = 512 * 1024;
+	private static final int VACUUM_FREE_RATIO = 4;
+	
+	private static final String LAST_USED = "COALESCE(" + SwiftypeDbHelper.COLUMN_LAST_ACCESS + ", " + SwiftypeDbHelper.COLUMN_TIMESTAMP + ")";
+	private static final String[] STATUS_COLUMNS = { SwiftypeDbHelper.COLUMN_QUERY_HASH, SwiftypeDbHelper.COLUMN_SEARCH_TYPE };
+	private static final String STATUS_SELECTION = SwiftypeDbHelper.COLUMN_QUERY_HASH + " = ? AND " + SwiftypeDbHelper.COLUMN_SEARCH_TYPE + " = ?";
+	private static final String QUERY_HASH_SELECTION = SwiftypeDbHelper.COLUMN_QUERY_HASH + " = ?";
+	private static final String ACCESS_SELECTION = STATUS_SELECTION + " AND " + LAST_USED + " < ?";
+	
+	private final SQLiteOpenHelper dbHelper;
+	private final SwiftypeConfig config;
+	private final ResultCache resultCache;
+	private final LocalIndex localIndex;
+	private final RequestExecutor executor;
+	
+	/**
+	 * Last recorded access per query, so reads served from memory don't write
+	 */
+	private final LruCache<String, Long> recordedAccesses = new LruCache<String, Long>(100);
+	private final AtomicBoolean running = new AtomicBoolean();
+	private volatile long lastRun = 0;
+	
+	/**
+	 * @param executor	Executor of the engine, eviction shares its background lane with analytics
+	 */
+	CacheEvictor(final SQLiteOpenHelper dbHelper, final SwiftypeConfig config, final ResultCache resultCache, final LocalIndex localIndex, final RequestExecutor executor) {
+		this.dbHelper = dbHelper;
+		this.config = config;
+		this.resultCache = resultCache;
+		this.localIndex = localIndex;
+		this.executor = executor;
+	}
+	
+	/**
+	 * Remember that the cached results of a query were read
+	 */
+	void recordAccess(final String queryHash, final boolean isSuggest) {
+		final long now = System.currentTimeMillis();
+		final String searchType = SearchContentProvider.searchStatusType(isSuggest);
+		final String key = searchType + ":" + queryHash;
+		final Long recorded = recordedAccesses.get(key);
+		if (recorded != null && now - recorded.longValue() < ACCESS_RESOLUTION) {
+			return;
+		}
+		recordedAccesses.put(key, now);
+		
+		final ContentValues values = new ContentValues();
+		values.put(SwiftypeDbHelper.COLUMN_LAST_ACCESS, now);
+		dbHelper.getWritableDatabase().update(SwiftypeDbHelper.TABLE_SEARCH_STATUS,
+											  values,
+											  ACCESS_SELECTION,
+											  new String[] { queryHash, searchType, Long.toString(now - ACCESS_RESOLUTION) });
+	}
+	
+	/**
+	 * Evict on the background lane unless the last run is too recent
+	 */
+	void schedule() {
+		if (SystemClock.elapsedRealtime() - lastRun < RUN_INTERVAL && lastRun != 0) {
+			return;
+		}
+		if (!running.compareAndSet(false, true)) {
+			return;
+		}
+		lastRun = SystemClock.elapsedRealtime();
+		executor.executeBackground(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					evict();
+				} catch (SQLException e) {
+					// e.g. the disk is full, the next run tries again
+					Log.i(LOG_ID, "Eviction failed: " + e.getMessage());
+				} finally {
+					running.set(false);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Evict expired queries, then least recently used ones until the cache
+	 * is within its limits, and vacuum if much space is free.
+	 */
+	void evict() {
+		final long start = SystemClock.elapsedRealtime();
+		final SQLiteDatabase db = dbHelper.getWritableDatabase();
+		final long bytesBefore = getUsedBytes(db);
+		int queries = 0;
+		int rows = 0;
+		int batches = 0;
+		
+		// queries not used for too long
+		final String cutoff = Long.toString(System.currentTimeMillis() - config.getCacheMaxAge());
+		List<String[]> batch;
+		while (batches < MAX_BATCHES && !(batch = leastRecentlyUsed(db, LAST_USED + " < ?", new String[] { cutoff })).isEmpty()) {
+			rows += evictQueries(db, batch);
+			queries += batch.size();
+			++batches;
+		}
+		rows += evictOrphans(db, cutoff);
+		
+		// documents of the local index, by age and count per document type
+		int documents = 0;
+		for (final String documentTypeName : config.getDocumentTypeNames()) {
+			documents += localIndex.trim(db, documentTypeName, Long.parseLong(cutoff), config.getCacheMaxRows());
+		}
+		
+		// least recently used queries beyond the limits, counted once and kept up to date with the deleted rows
+		long rowCount = countRows(db);
+		while (batches < MAX_BATCHES && (rowCount > config.getCacheMaxRows() || getUsedBytes(db) > config.getCacheMaxBytes())) {
+			batch = leastRecentlyUsed(db, null, null);
+			if (batch.isEmpty()) {
+				break;
+			}
+			final int evicted = evictQueries(db, batch);
+			rowCount -= evicted;
+			rows += evicted;
+			queries += batch.size();
+			++batches;
+		}
+		
+		final boolean vacuumed = vacuumIfNeeded(db);
+		Log.i(LOG_ID, "Evicted " + queries + " queries with " + rows + " rows in " + batches + " batches and " + documents + " local documents, " +
+					  bytesBefore / 1024 + "KB -> " + getUsedBytes(db) / 1024 + "KB" + (vacuumed ? ", vacuumed" : "") +
+					  " in " + (SystemClock.elapsedRealtime() - start) + "ms");
+	}
+	
+	/**
+	 * @return	Query hash and search type of the least recently used queries matching the selection
+	 */
+	private List<String[]> leastRecentlyUsed(final SQLiteDatabase db, final String selection, final String[] selectionArgs) {
+		final List<String[]> queries = new ArrayList<String[]>(BATCH_SIZE);
+		final Cursor cursor = db.query(SwiftypeDbHelper.TABLE_SEARCH_STATUS,
+									   STATUS_COLUMNS,
+									   selection,
+									   selectionArgs,
+									   null, null,
+									   LAST_USED + " ASC",
+									   Integer.toString(BATCH_SIZE));
+		try {
+			while (cursor.moveToNext()) {
+				queries.add(new String[] { cursor.getString(0), cursor.getString(1) });
+			}
+		} finally {
+			cursor.close();
+		}
+		return queries;
+	}
+	
+	/**
+	 * Delete all rows of the queries and their status in one transaction
+	 *
+	 * @return	Number of deleted result rows
+	 */
+	private int evictQueries(final SQLiteDatabase db, final List<String[]> queries) {
+		final String suggestType = SearchContentProvider.searchStatusType(true);
+		int rows = 0;
+		SwiftypeDbHelper.beginWriteTransaction(db);
+		try {
+			for (final String[] query : queries) {
+				final String[] hash = { query[0] };
+				final boolean isSuggest = suggestType.equals(query[1]);
+				for (final String documentTypeName : config.getDocumentTypeNames()) {
+					final String tableName = isSuggest ? SwiftypeDbHelper.suggestTable(documentTypeName) : SwiftypeDbHelper.searchTable(documentTypeName);
+					rows += db.delete(tableName, QUERY_HASH_SELECTION, hash);
+				}
+				if (!isSuggest) {
+					db.delete(SwiftypeDbHelper.TABLE_RESULT_STATUS, QUERY_HASH_SELECTION, hash);
+				}
+				db.delete(SwiftypeDbHelper.TABLE_SEARCH_STATUS, STATUS_SELECTION, query);
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+		final FreshnessIndex freshness = FreshnessIndex.getInstance();
+		for (final String[] query : queries) {
+			resultCache.invalidate(query[0], query[1]);
+			freshness.remove(query[0], suggestType.equals(query[1]));
+		}
+		return rows;
+	}
+	
+	/**
+	 * Rows without a status, e.g. of requests that never completed, are
+	 * not found by their last access and only evicted by age
+	 */
+	private int evictOrphans(final SQLiteDatabase db, final String cutoff) {
+		final String selection = SwiftypeDbHelper.COLUMN_TIMESTAMP + " < ? AND " + SwiftypeDbHelper.COLUMN_QUERY_HASH + " NOT IN (SELECT " + SwiftypeDbHelper.COLUMN_QUERY_HASH + " FROM " + SwiftypeDbHelper.TABLE_SEARCH_STATUS + ")";
+		final String[] selectionArgs = { cutoff };
+		int rows = 0;
+		SwiftypeDbHelper.beginWriteTransaction(db);
+		try {
+			for (final String tableName : rowTables()) {
+				rows += db.delete(tableName, selection, selectionArgs);
+			}
+			db.delete(SwiftypeDbHelper.TABLE_RESULT_STATUS, selection, selectionArgs);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+		return rows;
+	}
+	
+	private long countRows(final SQLiteDatabase db) {
+		long rows = 0;
+		for (final String tableName : rowTables()) {
+			rows += DatabaseUtils.queryNumEntries(db, tableName);
+		}
+		return rows;
+	}
+	
+	private List<String> rowTables() {
+		final String[] documentTypeNames = config.getDocumentTypeNames();
+		final List<String> tableNames = new ArrayList<String>(documentTypeNames.length * 2);
+		for (final String documentTypeName : documentTypeNames) {
+			tableNames.add(SwiftypeDbHelper.searchTable(documentTypeName));
+			tableNames.add(SwiftypeDbHelper.suggestTable(documentTypeName));
+		}
+		return tableNames;
+	}
+	
+	/**
+	 * @return	Bytes of the database pages in use, deleted rows only free pages
+	 */
+	private static long getUsedBytes(final SQLiteDatabase db) {
+		return (pragma(db, "page_count") - pragma(db, "freelist_count")) * db.getPageSize();
+	}
+	
+	/**
+	 * Deleted rows leave free pages behind, VACUUM gives them back to the file system
+	 */
+	private static boolean vacuumIfNeeded(final SQLiteDatabase db) {
+		final long pageSize = db.getPageSize();
+		final long freeBytes = pragma(db, "freelist_count") * pageSize;
+		final long totalBytes = pragma(db, "page_count") * pageSize;
+		if (freeBytes < VACUUM_MIN_FREE_BYTES || freeBytes * VACUUM_FREE_RATIO < totalBytes) {
+			return false;
+		}
+		db.execSQL("VACUUM");
+		return true;
+	}
+	
+	private static long pragma(final SQLiteDatabase db, final String name) {
+		return DatabaseUtils.longForQuery(db, "PRAGMA " + name, null);
+	}
+}
@@ -0,0 +1,193 @@
+package com.swiftype.android.search.backend;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.database.Cursor;
+import android.os.SystemClock;
+
+import com.swiftype.android.search.helper.SwiftypeDbHelper;
+import com.swiftype.api.search.ResponseValidator;
+
+/**
+ * Age and validators of the cached results of each query, kept in memory so
+ * checking whether a query needs an update doesn't query SearchStatus.
+ * Entries are loaded from SearchStatus on first use and SearchService writes
+ * through when it stores or touches results. Shared by the service and the
+ * provider, which run in the same process.
+ */
+class FreshnessIndex {
+	/**
+	 * Columns of SearchStatus an entry is loaded from, in this order
+	 */
+	static final String[] COLUMNS = { SwiftypeDbHelper.COLUMN_TIMESTAMP, SwiftypeDbHelper.COLUMN_ETAG, SwiftypeDbHelper.COLUMN_LAST_MODIFIED, SwiftypeDbHelper.COLUMN_BODY_HASH };
+	static final String SELECTION = SwiftypeDbHelper.COLUMN_QUERY_HASH + " = ? AND " + SwiftypeDbHelper.COLUMN_SEARCH_TYPE + " = ?";
+	
+	/**
+	 * Queries without cached results
+	 */
+	static final Entry MISSING = new Entry(0, null);
+	
+	/**
+	 * Entries per search type at most, all are dropped and loaded again beyond that
+	 */
+	private static final int MAX_ENTRIES = 1000;
+	
+	/**
+	 * Time after a failed request before the provider requests the query again
+	 */
+	static final long FAILURE_BACKOFF = 30 * 1000;
+	
+	private static final FreshnessIndex INSTANCE = new FreshnessIndex();
+	
+	private final ConcurrentMap<String, Entry> searches = new ConcurrentHashMap<String, Entry>();
+	private final ConcurrentMap<String, Entry> suggests = new ConcurrentHashMap<String, Entry>();
+	
+	/**
+	 * End of the backoff per query with a failed request, in elapsed realtime
+	 */
+	private final ConcurrentMap<String, Long> backoffs = new ConcurrentHashMap<String, Long>();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong loads = new AtomicLong();
+	
+	static FreshnessIndex getInstance() {
+		return INSTANCE;
+	}
+	
+	/**
+	 * @return	Entry of the query, null if it has to be loaded
+	 */
+	Entry get(final String queryHash, final boolean isSuggest) {
+		final Entry entry = entries(isSuggest).get(queryHash);
+		if (entry != null) {
+			hits.incrementAndGet();
+		}
+		return entry;
+	}
+	
+	/**
+	 * Add the entry read from SearchStatus, unless a newer one was written meanwhile
+	 *
+	 * @param cursor	Query of {@link #COLUMNS} for the query hash and search type, left open
+	 * @return			Entry of the query
+	 */
+	Entry load(final String queryHash, final boolean isSuggest, final Cursor cursor) {
+		loads.incrementAndGet();
+		final Entry loaded;
+		if (cursor == null || !cursor.moveToFirst()) {
+			loaded = MISSING;
+		} else {
+			loaded = new Entry(cursor.getLong(0), new ResponseValidator(cursor.getString(1), cursor.getString(2), cursor.getString(3)));
+		}
+		final ConcurrentMap<String, Entry> entries = bounded(isSuggest);
+		final Entry current = entries.putIfAbsent(queryHash, loaded);
+		return (current == null) ? loaded : current;
+	}
+	
+	/**
+	 * New results were stored
+	 */
+	void put(final String queryHash, final boolean isSuggest, final long timestamp, final ResponseValidator validator) {
+		bounded(isSuggest).put(queryHash, new Entry(timestamp, validator));
+		backoffs.remove(backoffKey(queryHash, isSuggest));
+	}
+	
+	/**
+	 * A request for the query failed, e.g. offline or behind an open circuit
+	 * breaker. Listeners notified of the failure must not request it again
+	 * right away.
+	 */
+	void fail(final String queryHash, final boolean isSuggest) {
+		if (backoffs.size() >= MAX_ENTRIES) {
+			backoffs.clear();
+		}
+		backoffs.put(backoffKey(queryHash, isSuggest), SystemClock.elapsedRealtime() + FAILURE_BACKOFF);
+	}
+	
+	/**
+	 * @return	True if a request for the query failed less than {@link #FAILURE_BACKOFF} ago
+	 */
+	boolean isBackingOff(final String queryHash, final boolean isSuggest) {
+		final String key = backoffKey(queryHash, isSuggest);
+		final Long until = backoffs.get(key);
+		if (until == null) {
+			return false;
+		}
+		if (SystemClock.elapsedRealtime() < until.longValue()) {
+			return true;
+		}
+		backoffs.remove(key, until);
+		return false;
+	}
+	
+	/**
+	 * The cached results were confirmed to be current
+	 */
+	void touch(final String queryHash, final boolean isSuggest, final long timestamp) {
+		final Entry entry = entries(isSuggest).get(queryHash);
+		if (entry != null && entry != MISSING) {
+			// unless new results were stored meanwhile
+			entries(isSuggest).replace(queryHash, entry, new Entry(timestamp, entry.validator));
+		}
+	}
+	
+	/**
+	 * The cached results were evicted
+	 */
+	void remove(final String queryHash, final boolean isSuggest) {
+		entries(isSuggest).remove(queryHash);
+	}
+	
+	/**
+	 * @return	Checks answered from memory
+	 */
+	long getHitCount() {
+		return hits.get();
+	}
+	
+	/**
+	 * @return	Checks that queried SearchStatus
+	 */
+	long getLoadCount() {
+		return loads.get();
+	}
+	
+	@Override
+	public String toString() {
+		return "hits: " + hits.get() + ", loads: " + loads.get() + ", entries: " + (searches.size() + suggests.size());
+	}
+	
+	private static String backoffKey(final String queryHash, final boolean isSuggest) {
+		return SearchContentProvider.searchStatusType(isSuggest) + ":" + queryHash;
+	}
+	
+	private ConcurrentMap<String, Entry> entries(final boolean isSuggest) {
+		return isSuggest ? suggests : searches;
+	}
+	
+	private ConcurrentMap<String, Entry> bounded(final boolean isSuggest) {
+		final ConcurrentMap<String, Entry> entries = entries(isSuggest);
+		if (entries.size() >= MAX_ENTRIES) {
+			entries.clear();
+		}
+		return entries;
+	}
+	
+	/**
+	 * Immutable age and validators of the cached results of a query
+	 */
+	static class Entry {
+		final long timestamp;
+		final ResponseValidator validator;
+		
+		Entry(final long timestamp, final ResponseValidator validator) {
+			this.timestamp = timestamp;
+			this.validator = validator;
+		}
+		
+		boolean needsUpdate() {
+			return timestamp <= System.currentTimeMillis() - SearchContentProvider.CACHE_TIME;
+		}
+	}
+}
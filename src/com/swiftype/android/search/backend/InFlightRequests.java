@@ -0,0 +1,222 @@
+package com.swiftype.android.search.backend;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import android.os.SystemClock;
+
+import com.swiftype.api.search.RequestHandle;
+
+/**
+ * Registry of the API requests currently in flight, keyed by request type
+ * and query hash. Requests for a query hash that is already being fetched
+ * attach to the pending request instead of sending a new one and are
+ * notified when its results are stored.
+ */
+class InFlightRequests {
+	/**
+	 * Requests without an answer after this time are considered lost
+	 */
+	static final long STALE_AFTER = 30 * 1000;
+	
+	private final Map<String, Request> requests = new HashMap<String, Request>();
+	private final Map<Integer, String> latestByType = new HashMap<Integer, String>();
+	private long coalesced = 0;
+	
+	/**
+	 * Attach to a pending request for the same query
+	 *
+	 * @param listener	Called once the pending request completed
+	 * @return			False if there is no pending request and a new one has to be started
+	 */
+	synchronized boolean attach(final int requestType, final String queryHash, final Runnable listener) {
+		final Request request = requests.get(key(requestType, queryHash));
+		if (request == null || SystemClock.elapsedRealtime() - request.started > STALE_AFTER) {
+			return false;
+		}
+		request.listeners.add(listener);
+		++coalesced;
+		return true;
+	}
+	
+	synchronized boolean isPending(final int requestType, final String queryHash) {
+		final Request request = requests.get(key(requestType, queryHash));
+		return request != null && SystemClock.elapsedRealtime() - request.started <= STALE_AFTER;
+	}
+	
+	/**
+	 * Register a request that is about to be sent. The engine only keeps one
+	 * request per type in flight and aborts the previous one, so its entry is
+	 * dropped here as well. Callers waiting for a restarted query keep
+	 * waiting for the new request, callers waiting for a replaced query are
+	 * told so, see {@link OnReplacedListener}.
+	 * 
+	 * @param listener	Called once the request completed, may be null
+	 */
+	void start(final int requestType, final String queryHash, final Runnable listener) {
+		Request replaced = null;
+		synchronized (this) {
+			final Request request = new Request();
+			final String previous = latestByType.put(requestType, queryHash);
+			final Request restarted = requests.remove(key(requestType, queryHash));
+			if (restarted != null) {
+				request.listeners.addAll(restarted.listeners);
+			}
+			if (previous != null && !previous.equals(queryHash)) {
+				replaced = requests.remove(key(requestType, previous));
+			}
+			if (listener != null) {
+				request.listeners.add(listener);
+			}
+			requests.put(key(requestType, queryHash), request);
+		}
+		if (replaced != null) {
+			for (final Runnable replacedListener : replaced.listeners) {
+				if (replacedListener instanceof OnReplacedListener) {
+					((OnReplacedListener) replacedListener).onReplaced();
+				} else {
+					replacedListener.run();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Remember the handle of a started request to be able to cancel it. If
+	 * the request fails, the waiting callers are notified as well. A request
+	 * that completed without answering its handler counts as failed.
+	 */
+	void track(final int requestType, final String queryHash, final RequestHandle handle, final Answerable handler) {
+		synchronized (this) {
+			final Request request = requests.get(key(requestType, queryHash));
+			if (request == null) {
+				return;
+			}
+			request.handle = handle;
+		}
+		handle.addCallback(new RequestHandle.Callback() {
+			@Override
+			public void onDone(final RequestHandle handle) {
+				final int state = handle.getState();
+				if (state == RequestHandle.FAILED || (state == RequestHandle.COMPLETED && !handler.isAnswered())) {
+					fail(requestType, queryHash, handle);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Cancel the latest request of the type unless callers are waiting for it
+	 * 
+	 * @return	False if the request is still needed and was not cancelled
+	 */
+	boolean cancel(final int requestType) {
+		final Request request;
+		synchronized (this) {
+			final String latest = latestByType.get(requestType);
+			if (latest == null) {
+				return true;
+			}
+			final String key = key(requestType, latest);
+			request = requests.get(key);
+			if (request != null && !request.listeners.isEmpty()) {
+				return false;
+			}
+			requests.remove(key);
+			latestByType.remove(requestType);
+		}
+		if (request != null && request.handle != null) {
+			request.handle.cancel();
+		}
+		return true;
+	}
+	
+	/**
+	 * Remove the request and notify all callers waiting for it
+	 * 
+	 * @return	False if the request was not registered (anymore)
+	 */
+	boolean complete(final int requestType, final String queryHash) {
+		final Request request = remove(requestType, queryHash);
+		if (request == null) {
+			return false;
+		}
+		notifyListeners(request);
+		return true;
+	}
+	
+	/**
+	 * Remove a failed request and notify the callers waiting for it, so they
+	 * don't wait for results that never arrive. Requests that were replaced
+	 * in the meantime are left alone.
+	 */
+	private void fail(final int requestType, final String queryHash, final RequestHandle handle) {
+		final Request request;
+		synchronized (this) {
+			final Request current = requests.get(key(requestType, queryHash));
+			if (current == null || current.handle != handle) {
+				return;
+			}
+			request = remove(requestType, queryHash);
+		}
+		notifyListeners(request);
+	}
+	
+	/**
+	 * Remove the request without notifying the callers waiting for it, e.g.
+	 * because the results they already see did not change
+	 */
+	void discard(final int requestType, final String queryHash) {
+		remove(requestType, queryHash);
+	}
+	
+	/**
+	 * @return	Number of requests that were served by a pending request
+	 */
+	synchronized long getCoalescedCount() {
+		return coalesced;
+	}
+	
+	private synchronized Request remove(final int requestType, final String queryHash) {
+		if (queryHash.equals(latestByType.get(requestType))) {
+			latestByType.remove(requestType);
+		}
+		return requests.remove(key(requestType, queryHash));
+	}
+	
+	private static void notifyListeners(final Request request) {
+		for (final Runnable listener : request.listeners) {
+			listener.run();
+		}
+	}
+	
+	private static String key(final int requestType, final String queryHash) {
+		return requestType + ":" + queryHash;
+	}
+	
+	/**
+	 * Handler of a tracked request
+	 */
+	interface Answerable {
+		/**
+		 * @return	True once the results or the confirmation of the cached ones were delivered
+		 */
+		boolean isAnswered();
+	}
+	
+	/**
+	 * Listener that is told instead of run when its request is replaced by
+	 * one for another query of the same type, which is still in flight
+	 */
+	interface OnReplacedListener {
+		void onReplaced();
+	}
+	
+	private static class Request {
+		private final long started = SystemClock.elapsedRealtime();
+		private final Set<Runnable> listeners = new LinkedHashSet<Runnable>();
+		private RequestHandle handle;
+	}
+}
@@ -0,0 +1,258 @@
+package com.swiftype.android.search.backend;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.swiftype.android.search.SwiftypeConfig;
+import com.swiftype.android.search.SwiftypeConfig.DocumentTypeConfig;
+import com.swiftype.android.search.helper.SwiftypeDbHelper;
+import com.swiftype.api.search.NetworkPolicy;
+
+/**
+ * Full-text index over every document the cache has seen. Search results
+ * are added as they are stored, so queries can be answered on the device
+ * without a connection, e.g. when offline or for instant results. A
+ * document stays in the index after the results that contained it are
+ * replaced, until it is evicted by age or count.
+ */
+class LocalIndex {
+	private static final String EM_START = "<em>";
+	private static final String EM_END = "</em>";
+	
+	private final SwiftypeConfig config;
+	
+	LocalIndex(final SwiftypeConfig config) {
+		this.config = config;
+	}
+	
+	/**
+	 * @return	Writer adding search result rows to the index within the caller's transaction
+	 */
+	Writer newWriter(final SQLiteDatabase db) {
+		return new Writer(db);
+	}
+	
+	/**
+	 * Documents matching every word of the query as a prefix, newest first.
+	 * The rows have the columns of cached search results plus _local.
+	 */
+	Cursor query(final SQLiteDatabase db, final String documentTypeName, final String query) {
+		final DocumentTypeConfig documentTypeConfig = config.getDocumentTypeConfig(documentTypeName);
+		final String[] searchFields = documentTypeConfig.getSearchFields();
+		final String[] columns = new String[searchFields.length + 2];
+		for (int i = 0; i < searchFields.length; ++i) {
+			columns[i] = searchFields[i];
+		}
+		columns[searchFields.length] = SwiftypeDbHelper.COLUMN_ID;
+		columns[searchFields.length + 1] = "1 AS " + SwiftypeDbHelper.COLUMN_LOCAL;
+		
+		final String indexTable = SwiftypeDbHelper.localIndexTable(documentTypeName);
+		final String expression = matchExpression(query);
+		// without any words the cursor is empty, but has the columns the adapters expect
+		final String selection = (expression.length() == 0) ? "0" : SwiftypeDbHelper.COLUMN_ID + " IN (SELECT docid FROM " + indexTable + " WHERE " + indexTable + " MATCH ?)";
+		final String[] selectionArgs = (expression.length() == 0) ? null : new String[] { expression };
+		final int perPage = config.getQueryOptions().getPerPage();
+		return db.query(SwiftypeDbHelper.localTable(documentTypeName),
+						columns,
+						selection,
+						selectionArgs,
+						null, null,
+						SwiftypeDbHelper.COLUMN_TIMESTAMP + " DESC",
+						Integer.toString((perPage > 0) ? perPage : NetworkPolicy.API_PER_PAGE));
+	}
+	
+	/**
+	 * Remove documents older than the cutoff and the oldest ones beyond the maximum count
+	 *
+	 * @return	Number of removed documents
+	 */
+	int trim(final SQLiteDatabase db, final String documentTypeName, final long cutoff, final int maxDocuments) {
+		final String localTable = SwiftypeDbHelper.localTable(documentTypeName);
+		final String selection = SwiftypeDbHelper.COLUMN_TIMESTAMP + " < ? OR " + SwiftypeDbHelper.COLUMN_ID + " NOT IN (SELECT " + SwiftypeDbHelper.COLUMN_ID + " FROM " + localTable + " ORDER BY " + SwiftypeDbHelper.COLUMN_TIMESTAMP + " DESC LIMIT ?)";
+		final String[] selectionArgs = { Long.toString(cutoff), Integer.toString(maxDocuments) };
+		SwiftypeDbHelper.beginWriteTransaction(db);
+		try {
+			db.delete(SwiftypeDbHelper.localIndexTable(documentTypeName),
+					  "docid IN (SELECT " + SwiftypeDbHelper.COLUMN_ID + " FROM " + localTable + " WHERE " + selection + ")",
+					  selectionArgs);
+			final int documents = db.delete(localTable, selection, selectionArgs);
+			db.setTransactionSuccessful();
+			return documents;
+		} finally {
+			db.endTransaction();
+		}
+	}
+	
+	/**
+	 * Words of the query as prefix terms, without the operators of the match syntax
+	 */
+	static String matchExpression(final String query) {
+		final StringBuilder expression = new StringBuilder();
+		for (final String word : query.toLowerCase().split("[^\\p{L}\\p{N}]+")) {
+			if (word.length() > 0) {
+				expression.append((expression.length() == 0) ? "" : " ").append(word).append('*');
+			}
+		}
+		return expression.toString();
+	}
+	
+	/**
+	 * @return	Stable row id of a document, so a document that is stored again replaces its entry
+	 */
+	static long docid(final String documentTypeName, final String documentId) {
+		try {
+			final MessageDigest md = MessageDigest.getInstance("SHA-1");
+			md.update(documentTypeName.getBytes("UTF-8"));
+			md.update((byte) 0);
+			md.update(documentId.getBytes("UTF-8"));
+			final byte[] digest = md.digest();
+			long id = 0;
+			for (int i = 0; i < 8; ++i) {
+				id = (id << 8) | (digest[i] & 0xff);
+			}
+			return id & Long.MAX_VALUE;
+		} catch (NoSuchAlgorithmException e) {
+			return (documentTypeName + documentId).hashCode() & Integer.MAX_VALUE;
+		} catch (UnsupportedEncodingException e) {
+			return (documentTypeName + documentId).hashCode() & Integer.MAX_VALUE;
+		}
+	}
+	
+	private static String stripHighlights(final String value) {
+		return (value == null) ? null : value.replace(EM_START, "").replace(EM_END, "");
+	}
+	
+	/**
+	 * Adds documents with statements compiled once per document type. Must be
+	 * closed, in the transaction that wrote the search results.
+	 */
+	class Writer {
+		private final SQLiteDatabase db;
+		private final Map<String, SQLiteStatement[]> statements = new HashMap<String, SQLiteStatement[]>();
+		private int documents = 0;
+		
+		private Writer(final SQLiteDatabase db) {
+			this.db = db;
+		}
+		
+		/**
+		 * @param row	Search result row as stored in the search table
+		 */
+		void add(final String documentTypeName, final ContentValues row) {
+			final String documentId = row.getAsString(SwiftypeDbHelper.COLUMN_DOCUMENT_ID);
+			if (documentId == null) {
+				return;
+			}
+			final DocumentTypeConfig documentTypeConfig = config.getDocumentTypeConfig(documentTypeName);
+			final String[] documentColumns = documentColumns(documentTypeConfig);
+			final String[] indexedFields = SwiftypeDbHelper.getIndexedFields(documentTypeConfig);
+			SQLiteStatement[] compiled = statements.get(documentTypeName);
+			if (compiled == null) {
+				compiled = compile(documentTypeName, documentColumns, indexedFields);
+				statements.put(documentTypeName, compiled);
+			}
+			
+			final long docid = docid(documentTypeName, documentId);
+			final SQLiteStatement document = compiled[0];
+			document.clearBindings();
+			document.bindLong(1, docid);
+			document.bindLong(2, System.currentTimeMillis());
+			for (int i = 0; i < documentColumns.length; ++i) {
+				bind(document, 3 + i, stripHighlights(row.getAsString(documentColumns[i])));
+			}
+			document.executeInsert();
+			
+			final SQLiteStatement delete = compiled[1];
+			delete.bindLong(1, docid);
+			delete.execute();
+			
+			final SQLiteStatement index = compiled[2];
+			index.clearBindings();
+			index.bindLong(1, docid);
+			for (int i = 0; i < indexedFields.length; ++i) {
+				bind(index, 2 + i, stripHighlights(row.getAsString(indexedFields[i])));
+			}
+			index.executeInsert();
+			++documents;
+		}
+		
+		/**
+		 * @return	Number of documents added
+		 */
+		int getDocumentCount() {
+			return documents;
+		}
+		
+		void close() {
+			for (final SQLiteStatement[] compiled : statements.values()) {
+				for (final SQLiteStatement statement : compiled) {
+					statement.close();
+				}
+			}
+			statements.clear();
+		}
+		
+		private SQLiteStatement[] compile(final String documentTypeName, final String[] documentColumns, final String[] indexedFields) {
+			final StringBuilder document = new StringBuilder("INSERT OR REPLACE INTO ");
+			document.append(SwiftypeDbHelper.localTable(documentTypeName));
+			document.append(" (" + SwiftypeDbHelper.COLUMN_ID + "," + SwiftypeDbHelper.COLUMN_TIMESTAMP);
+			for (final String column : documentColumns) {
+				document.append(",").append(column);
+			}
+			document.append(") VALUES (?,?");
+			for (int i = 0; i < documentColumns.length; ++i) {
+				document.append(",?");
+			}
+			document.append(")");
+			
+			final String indexTable = SwiftypeDbHelper.localIndexTable(documentTypeName);
+			final StringBuilder index = new StringBuilder("INSERT INTO ");
+			index.append(indexTable).append(" (docid");
+			for (final String field : indexedFields) {
+				index.append(",").append(field);
+			}
+			index.append(") VALUES (?");
+			for (int i = 0; i < indexedFields.length; ++i) {
+				index.append(",?");
+			}
+			index.append(")");
+			
+			return new SQLiteStatement[] {
+					db.compileStatement(document.toString()),
+					db.compileStatement("DELETE FROM " + indexTable + " WHERE docid = ?"),
+					db.compileStatement(index.toString())
+			};
+		}
+	}
+	
+	/**
+	 * @return	Search fields stored per document, the id included
+	 */
+	private static String[] documentColumns(final DocumentTypeConfig documentTypeConfig) {
+		final List<String> columns = new ArrayList<String>();
+		for (final String field : documentTypeConfig.getSearchFields()) {
+			if (!SwiftypeDbHelper.COLUMN_ID.equals(field) && !SwiftypeDbHelper.COLUMN_QUERY_HASH.equals(field)) {
+				columns.add(field);
+			}
+		}
+		return columns.toArray(new String[columns.size()]);
+	}
+	
+	private static void bind(final SQLiteStatement statement, final int index, final String value) {
+		if (value == null) {
+			statement.bindNull(index);
+		} else {
+			statement.bindString(index, value);
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package com.swiftype.android.search.backend;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.support.v4.util.LruCache;
+
+/**
+ * In memory cache in front of the cache tables. Holds immutable snapshots of
+ * the current results of a query and document type, so loaders that ask for
+ * the same query again get their cursor without touching SQLite. The
+ * provider drops the snapshots of a query when the service flips it to a new
+ * generation, and all snapshots when rows are deleted otherwise.
+ */
+public class ResultCache {
+	private final LruCache<String, Snapshot> snapshots;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	
+	/**
+	 * Incremented by every invalidation, so snapshots read before it are not stored after it
+	 */
+	private final AtomicLong version = new AtomicLong();
+	
+	/**
+	 * @param maxRows	Rows of all snapshots held at most
+	 */
+	public ResultCache(final int maxRows) {
+		snapshots = new LruCache<String, Snapshot>(maxRows) {
+			@Override
+			protected int sizeOf(final String key, final Snapshot snapshot) {
+				// empty results take a slot as well
+				return Math.max(1, snapshot.rows.length);
+			}
+		};
+	}
+	
+	/**
+	 * @return	Cursor over the cached snapshot, null if there is none
+	 */
+	Cursor get(final String queryHash, final String searchType, final String documentTypeName) {
+		final Snapshot snapshot = snapshots.get(key(queryHash, searchType, documentTypeName));
+		if (snapshot == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return snapshot.toCursor();
+	}
+	
+	/**
+	 * @return	Version to pass to {@link #put}, taken before reading the rows
+	 */
+	long getVersion() {
+		return version.get();
+	}
+	
+	/**
+	 * Store a snapshot of the cursor and return a cursor over it. The cursor
+	 * is read completely and closed. Nothing is stored if the cache was
+	 * invalidated since the version was taken.
+	 */
+	Cursor put(final String queryHash, final String searchType, final String documentTypeName, final long readVersion, final Cursor cursor) {
+		final Snapshot snapshot = new Snapshot(cursor);
+		synchronized (version) {
+			if (version.get() == readVersion) {
+				snapshots.put(key(queryHash, searchType, documentTypeName), snapshot);
+			}
+		}
+		return snapshot.toCursor();
+	}
+	
+	/**
+	 * Drop the snapshots of a query for all document types
+	 */
+	void invalidate(final String queryHash, final String searchType) {
+		final String prefix = key(queryHash, searchType, "");
+		synchronized (version) {
+			version.incrementAndGet();
+			for (final String key : snapshots.snapshot().keySet()) {
+				if (key.startsWith(prefix)) {
+					snapshots.remove(key);
+				}
+			}
+		}
+	}
+	
+	void invalidateAll() {
+		synchronized (version) {
+			version.incrementAndGet();
+			snapshots.evictAll();
+		}
+	}
+	
+	public long getHitCount() {
+		return hits.get();
+	}
+	
+	public long getMissCount() {
+		return misses.get();
+	}
+	
+	/**
+	 * @return	Rows of all snapshots held
+	 */
+	public int getSize() {
+		return snapshots.size();
+	}
+	
+	public int getMaxSize() {
+		return snapshots.maxSize();
+	}
+	
+	@Override
+	public String toString() {
+		final long hitCount = hits.get();
+		final long total = hitCount + misses.get();
+		return "hits: " + hitCount + "/" + total + ", rows: " + getSize() + "/" + getMaxSize();
+	}
+	
+	private static String key(final String queryHash, final String searchType, final String documentTypeName) {
+		return searchType + ":" + queryHash + ":" + documentTypeName;
+	}
+	
+	/**
+	 * Rows of a cursor as strings, cursors over it convert them back like
+	 * SQLite does for the text columns of the cache tables
+	 */
+	private static class Snapshot {
+		private final String[] columnNames;
+		private final String[][] rows;
+		
+		public Snapshot(final Cursor cursor) {
+			try {
+				columnNames = cursor.getColumnNames();
+				rows = new String[cursor.getCount()][];
+				int i = 0;
+				cursor.moveToPosition(-1);
+				while (cursor.moveToNext()) {
+					final String[] row = new String[columnNames.length];
+					for (int column = 0; column < row.length; ++column) {
+						row[column] = cursor.getString(column);
+					}
+					rows[i++] = row;
+				}
+			} finally {
+				cursor.close();
+			}
+		}
+		
+		public Cursor toCursor() {
+			final MatrixCursor cursor = new MatrixCursor(columnNames, rows.length);
+			for (final String[] row : rows) {
+				cursor.addRow(row);
+			}
+			return cursor;
+		}
+	}
+}
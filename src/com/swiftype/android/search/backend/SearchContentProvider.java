@@ -1,7 +1,11 @@
 package com.swiftype.android.search.backend;
 
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import android.annotation.SuppressLint;
 import android.content.ContentProvider;
@@ -9,13 +13,18 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.res.Resources;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.database.MergeCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.SystemClock;
+import android.text.TextUtils;
 import android.util.Log;
 
+import com.swiftype.android.search.R;
 import com.swiftype.android.search.SwiftypeConfig;
 import com.swiftype.android.search.helper.SearchContentProviderHelper;
 import com.swiftype.android.search.helper.SwiftypeDbHelper;
@@ -31,16 +40,33 @@ public class SearchContentProvider extends ContentProvider {
 	 */
 	public static final int MIN_SUGGEST_CHARS = 3;
 	
+	/**
+	 * Shorter prefixes looked up at most for cached suggestions to refine
+	 */
+	private static final int MAX_REFINED_PREFIXES = 5;
+	
 	private static final String LOG_ID = SearchContentProvider.class.getSimpleName();
 	
 	private static final String[] RESULT_STATUS_QUERY_COLUMNS = { SwiftypeDbHelper.COLUMN_DOCUMENT_TYPE, SwiftypeDbHelper.COLUMN_TOTAL_COUNT };
-	private static final String RESULT_STATUS_QUERY_SELECTION = SwiftypeDbHelper.COLUMN_QUERY_HASH + " = ?";
-	private static final String SUGGEST_NEEDS_UPDATE_QUERY_SELECTION = SwiftypeDbHelper.COLUMN_QUERY_HASH + " = ? AND " + SwiftypeDbHelper.COLUMN_SEARCH_TYPE + " = ?" + " AND " + SwiftypeDbHelper.COLUMN_TIMESTAMP + " > ?";
+	
+	/**
+	 * Rows of the query hash that belong to the generation the search status
+	 * points to. Refreshed results are written under a new generation and
+	 * only become visible once the status is flipped to it, in one statement.
+	 */
+	private static final String CURRENT_GENERATION_SELECTION = SwiftypeDbHelper.COLUMN_QUERY_HASH + " = ? AND " + SwiftypeDbHelper.COLUMN_GENERATION + " = (SELECT " + SwiftypeDbHelper.COLUMN_GENERATION + " FROM " + SwiftypeDbHelper.TABLE_SEARCH_STATUS + " WHERE " + SwiftypeDbHelper.COLUMN_QUERY_HASH + " = ? AND " + SwiftypeDbHelper.COLUMN_SEARCH_TYPE + " = ?)";
+	/**
+	 * Rows of the query hash replaced by a newer generation, never visible to readers
+	 */
+	public static final String OLD_GENERATION_SELECTION = SwiftypeDbHelper.COLUMN_QUERY_HASH + " = ? AND " + SwiftypeDbHelper.COLUMN_GENERATION + " < ?";
 
 	private SearchServiceHelper searchServiceHelper;
 	private SQLiteOpenHelper dbHelper;
 	private SwiftypeConfig config;
 	private SearchContentProviderHelper helper;
+	private CacheEvictor evictor;
+	private LocalIndex localIndex;
+	private static volatile ResultCache resultCache;
 	
 	@Override
 	public boolean onCreate() {
@@ -50,8 +76,18 @@ public class SearchContentProvider extends ContentProvider {
 		final Resources resources = context.getResources();
 		config = new SwiftypeConfig(resources);
 		helper = new SearchContentProviderHelper(resources);
+		resultCache = new ResultCache(config.getResultCacheRows());
+		localIndex = new LocalIndex(config);
+		evictor = new CacheEvictor(dbHelper, config, resultCache, localIndex, SearchService.getSharedEngine(context.getString(R.string.engine_key)).getExecutor());
 		return true;
 	}	
+	
+	/**
+	 * @return	In memory cache of the provider, null before it was created
+	 */
+	public static ResultCache getResultCache() {
+		return resultCache;
+	}
 
 	@Override
 	public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
@@ -83,6 +119,17 @@ public class SearchContentProvider extends ContentProvider {
 		case SearchContentProviderHelper.SUGGEST_URI_ID:
 			cursor = suggest(uri, argument);
 			break;
+		/**
+		 * Query the documents on the device instead of the results of a
+		 * search request, e.g. while offline. The rows have the columns of
+		 * search results plus _local.
+		 * 
+		 * @param	uri		Uri with two path segments, the document type
+		 * and the search query.
+		 */
+		case SearchContentProviderHelper.LOCAL_URI_ID:
+			cursor = searchLocal(extractDocumentType(uri), argument);
+			break;
 		case SearchContentProviderHelper.SEARCH_STATUS_URI_ID:
 			SQLiteDatabase db = dbHelper.getReadableDatabase();
 			cursor = db.query(SwiftypeDbHelper.TABLE_SEARCH_STATUS,
@@ -94,10 +141,19 @@ public class SearchContentProvider extends ContentProvider {
 		case SearchContentProviderHelper.RESULT_STATUS_URI_ID:
 			cursor = dbHelper.getReadableDatabase().query(SwiftypeDbHelper.TABLE_RESULT_STATUS,
 							                              RESULT_STATUS_QUERY_COLUMNS,
-							                              RESULT_STATUS_QUERY_SELECTION,
-							                              new String[] {argument},
+							                              CURRENT_GENERATION_SELECTION,
+							                              currentGenerationArgs(argument, false),
 							                              null, null, null);
 			break;
+		case SearchContentProviderHelper.ANALYTICS_URI_ID:
+			cursor = dbHelper.getReadableDatabase().query(SwiftypeDbHelper.TABLE_ANALYTICS_QUEUE,
+														  projection,
+														  selection,
+														  selectionArgs,
+														  null, null,
+														  sortOrder,
+														  helper.extractLimit(uri));
+			break;
 		case SearchContentProviderHelper.DO_NOTHING_URI_ID:
 			break;
 		default:
@@ -114,18 +170,28 @@ public class SearchContentProvider extends ContentProvider {
 		case SearchContentProviderHelper.SEARCH_URI_ID:
 			for (final String documentTypeName : config.getDocumentTypeNames()) {
 				final String tableName = SwiftypeDbHelper.searchTable(documentTypeName);
-				db.delete(tableName, selection, selectionArgs);
+				deletes += db.delete(tableName, selection, selectionArgs);
 			}
 			break;
 		case SearchContentProviderHelper.SUGGEST_URI_ID:
 			for (final String documentTypeName : config.getDocumentTypeNames()) {
 				final String tableName = SwiftypeDbHelper.suggestTable(documentTypeName);
-				db.delete(tableName, selection, selectionArgs);
+				deletes += db.delete(tableName, selection, selectionArgs);
 			}
 			break;
+		case SearchContentProviderHelper.RESULT_STATUS_URI_ID:
+			deletes += db.delete(SwiftypeDbHelper.TABLE_RESULT_STATUS, selection, selectionArgs);
+			break;
+		case SearchContentProviderHelper.ANALYTICS_URI_ID:
+			deletes += db.delete(SwiftypeDbHelper.TABLE_ANALYTICS_QUEUE, selection, selectionArgs);
+			break;
 		default:
 			throw new IllegalArgumentException();
 		}
+		// old generations were never visible, any other delete may have removed current rows
+		if (deletes > 0 && !OLD_GENERATION_SELECTION.equals(selection)) {
+			resultCache.invalidateAll();
+		}
 		return deletes;
 	}
 
@@ -143,25 +209,97 @@ public class SearchContentProvider extends ContentProvider {
 			final String searchTableName = SwiftypeDbHelper.searchTable(values.getAsString(SwiftypeDbHelper.COLUMN_DOCUMENT_TYPE));
 			values.remove(SwiftypeDbHelper.COLUMN_DOCUMENT_TYPE);
 			db.replace(searchTableName, null, values);
+			resultCache.invalidateAll();
 			break;
 		case SearchContentProviderHelper.SUGGEST_URI_ID:
 			final String suggestTableName = SwiftypeDbHelper.suggestTable(values.getAsString(SwiftypeDbHelper.COLUMN_DOCUMENT_TYPE));
 			values.remove(SwiftypeDbHelper.COLUMN_DOCUMENT_TYPE);
 			db.replace(suggestTableName, null, values);
+			resultCache.invalidateAll();
 			break;
 		case SearchContentProviderHelper.SEARCH_STATUS_URI_ID:
-			values.put(SwiftypeDbHelper.COLUMN_QUERY_HASH, extractArgument(uri));
+			final String queryHash = extractArgument(uri);
+			values.put(SwiftypeDbHelper.COLUMN_QUERY_HASH, queryHash);
 			db.replace(SwiftypeDbHelper.TABLE_SEARCH_STATUS, null, values);
+			// the flip to a new generation
+			resultCache.invalidate(queryHash, values.getAsString(SwiftypeDbHelper.COLUMN_SEARCH_TYPE));
 			break;
 		case SearchContentProviderHelper.RESULT_STATUS_URI_ID:
 			db.replace(SwiftypeDbHelper.TABLE_RESULT_STATUS, null, values);
 			break;
+		case SearchContentProviderHelper.ANALYTICS_URI_ID:
+			db.insert(SwiftypeDbHelper.TABLE_ANALYTICS_QUEUE, null, values);
+			break;
 		default:
 			throw new IllegalArgumentException();
 		}
 		return uri;
 	}
 	
+	/**
+	 * Insert all rows in one transaction. Rows with the same table and
+	 * columns share one compiled statement and observers of the uri are
+	 * notified once for the whole batch.
+	 */
+	@Override
+	public int bulkInsert(Uri uri, ContentValues[] values) {
+		final int match = helper.getUriMatcher().match(uri);
+		if (values.length == 0) {
+			return 0;
+		}
+		
+		final long start = SystemClock.elapsedRealtime();
+		final SQLiteDatabase db = dbHelper.getWritableDatabase();
+		final Map<String, SQLiteStatement> statements = new HashMap<String, SQLiteStatement>();
+		// search results are added to the local index in the same transaction
+		final LocalIndex.Writer indexWriter = (match == SearchContentProviderHelper.SEARCH_URI_ID) ? localIndex.newWriter(db) : null;
+		int inserted = 0;
+		// readers keep their own connections while the batch is written
+		SwiftypeDbHelper.beginWriteTransaction(db);
+		try {
+			for (final ContentValues row : values) {
+				final String documentTypeName = row.getAsString(SwiftypeDbHelper.COLUMN_DOCUMENT_TYPE);
+				final String tableName = bulkInsertTable(match, uri, row);
+				final String[] columns = columnsOf(row);
+				final String key = tableName + ":" + TextUtils.join(",", columns);
+				SQLiteStatement statement = statements.get(key);
+				if (statement == null) {
+					statement = db.compileStatement(insertSql(match, tableName, columns));
+					statements.put(key, statement);
+				}
+				bind(statement, columns, row);
+				if (statement.executeInsert() != -1) {
+					++inserted;
+				}
+				if (indexWriter != null) {
+					indexWriter.add(documentTypeName, row);
+				}
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+			for (final SQLiteStatement statement : statements.values()) {
+				statement.close();
+			}
+			if (indexWriter != null) {
+				indexWriter.close();
+			}
+		}
+		
+		// rows are written to a generation that is not visible yet, only a new status changes what readers see
+		if (match == SearchContentProviderHelper.SEARCH_STATUS_URI_ID) {
+			resultCache.invalidateAll();
+		}
+		if (helper.shouldNotify(uri)) {
+			getContext().getContentResolver().notifyChange(uri, null);
+		}
+		if (match == SearchContentProviderHelper.SEARCH_URI_ID || match == SearchContentProviderHelper.SUGGEST_URI_ID) {
+			evictor.schedule();
+		}
+		Log.i(LOG_ID, "Bulk insert of " + inserted + " rows" + ((indexWriter != null) ? " (" + indexWriter.getDocumentCount() + " indexed)" : "") + " with " + statements.size() + " statements in " + (SystemClock.elapsedRealtime() - start) + "ms: " + uri.getPath());
+		return inserted;
+	}
+	
 	@Override
 	public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
 		int rowsUpdated = 0;
@@ -169,6 +307,12 @@ public class SearchContentProvider extends ContentProvider {
 		case SearchContentProviderHelper.SEARCH_STATUS_URI_ID:
 			SQLiteDatabase db = dbHelper.getWritableDatabase();
 			rowsUpdated += db.update(SwiftypeDbHelper.TABLE_SEARCH_STATUS, values, selection, selectionArgs);
+			if (rowsUpdated > 0 && values.containsKey(SwiftypeDbHelper.COLUMN_GENERATION)) {
+				resultCache.invalidateAll();
+			}
+			break;
+		case SearchContentProviderHelper.ANALYTICS_URI_ID:
+			rowsUpdated += dbHelper.getWritableDatabase().update(SwiftypeDbHelper.TABLE_ANALYTICS_QUEUE, values, selection, selectionArgs);
 			break;
 		default:
 			throw new IllegalArgumentException();
@@ -176,22 +320,116 @@ public class SearchContentProvider extends ContentProvider {
 		return rowsUpdated;
 	}
 	
+	/**
+	 * @return	Table of a row inserted in bulk, the same one insert() would use
+	 */
+	private String bulkInsertTable(final int match, final Uri uri, final ContentValues row) {
+		switch (match) {
+		case SearchContentProviderHelper.SEARCH_URI_ID:
+			final String searchTableName = SwiftypeDbHelper.searchTable(row.getAsString(SwiftypeDbHelper.COLUMN_DOCUMENT_TYPE));
+			row.remove(SwiftypeDbHelper.COLUMN_DOCUMENT_TYPE);
+			return searchTableName;
+		case SearchContentProviderHelper.SUGGEST_URI_ID:
+			final String suggestTableName = SwiftypeDbHelper.suggestTable(row.getAsString(SwiftypeDbHelper.COLUMN_DOCUMENT_TYPE));
+			row.remove(SwiftypeDbHelper.COLUMN_DOCUMENT_TYPE);
+			return suggestTableName;
+		case SearchContentProviderHelper.SEARCH_STATUS_URI_ID:
+			row.put(SwiftypeDbHelper.COLUMN_QUERY_HASH, extractArgument(uri));
+			return SwiftypeDbHelper.TABLE_SEARCH_STATUS;
+		case SearchContentProviderHelper.RESULT_STATUS_URI_ID:
+			return SwiftypeDbHelper.TABLE_RESULT_STATUS;
+		case SearchContentProviderHelper.ANALYTICS_URI_ID:
+			return SwiftypeDbHelper.TABLE_ANALYTICS_QUEUE;
+		default:
+			throw new IllegalArgumentException();
+		}
+	}
+	
+	/**
+	 * Analytics events are appended, all other rows replace older ones with the same key like in insert()
+	 */
+	private static String insertSql(final int match, final String tableName, final String[] columns) {
+		final StringBuilder sql = new StringBuilder(match == SearchContentProviderHelper.ANALYTICS_URI_ID ? "INSERT INTO " : "INSERT OR REPLACE INTO ");
+		sql.append(tableName).append(" (");
+		for (int i = 0; i < columns.length; ++i) {
+			sql.append((i == 0) ? "" : ",").append(columns[i]);
+		}
+		sql.append(") VALUES (");
+		for (int i = 0; i < columns.length; ++i) {
+			sql.append((i == 0) ? "?" : ",?");
+		}
+		return sql.append(")").toString();
+	}
+	
+	/**
+	 * @return	Sorted column names of the row, so rows with the same columns share a statement
+	 */
+	private static String[] columnsOf(final ContentValues row) {
+		final Set<Map.Entry<String, Object>> entries = row.valueSet();
+		final String[] columns = new String[entries.size()];
+		int i = 0;
+		for (final Map.Entry<String, Object> entry : entries) {
+			columns[i++] = entry.getKey();
+		}
+		Arrays.sort(columns);
+		return columns;
+	}
+	
+	private static void bind(final SQLiteStatement statement, final String[] columns, final ContentValues row) {
+		statement.clearBindings();
+		for (int i = 0; i < columns.length; ++i) {
+			final Object value = row.get(columns[i]);
+			final int index = i + 1;
+			if (value == null) {
+				statement.bindNull(index);
+			} else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+				statement.bindLong(index, ((Number) value).longValue());
+			} else if (value instanceof Double || value instanceof Float) {
+				statement.bindDouble(index, ((Number) value).doubleValue());
+			} else if (value instanceof Boolean) {
+				statement.bindLong(index, ((Boolean) value).booleanValue() ? 1 : 0);
+			} else if (value instanceof byte[]) {
+				statement.bindBlob(index, (byte[]) value);
+			} else {
+				statement.bindString(index, value.toString());
+			}
+		}
+	}
+	
 	private Cursor search(final String documentTypeName, final String queryHash) {
-		final SQLiteDatabase db = dbHelper.getReadableDatabase();
-		final Cursor cursor = db.query(SwiftypeDbHelper.searchTable(documentTypeName),
-							  		   concat(config.getDocumentTypeConfig(documentTypeName).getSearchFields(), SwiftypeDbHelper.COLUMN_ID),
-							  		   SwiftypeDbHelper.COLUMN_QUERY_HASH + " = ?",
-							  		   new String[] { queryHash },
-							  		   null, null, null);
+		final String searchType = searchStatusType(false);
+		final long version = resultCache.getVersion();
+		Cursor cursor = resultCache.get(queryHash, searchType, documentTypeName);
+		if (cursor == null) {
+			final SQLiteDatabase db = dbHelper.getReadableDatabase();
+			cursor = resultCache.put(queryHash, searchType, documentTypeName, version,
+									 db.query(SwiftypeDbHelper.searchTable(documentTypeName),
+											  concat(config.getDocumentTypeConfig(documentTypeName).getSearchFields(), SwiftypeDbHelper.COLUMN_ID),
+											  CURRENT_GENERATION_SELECTION,
+											  currentGenerationArgs(queryHash, false),
+											  null, null, null));
+		}
 		
 		Log.i(LOG_ID, "DocumentTypeName: " + documentTypeName);
-		Log.i(LOG_ID, "Results (" + queryHash + ") " + cursor.getCount());
+		Log.i(LOG_ID, "Results (" + queryHash + ") " + cursor.getCount() + ", result cache " + resultCache);
 		
+		cursor.setNotificationUri(getContext().getContentResolver(), helper.getSearchUpdateUri());
+		evictor.recordAccess(queryHash, false);
+		return cursor;
+	}
+	
+	private Cursor searchLocal(final String documentTypeName, final String query) {
+		final long start = SystemClock.elapsedRealtime();
+		final Cursor cursor = localIndex.query(dbHelper.getReadableDatabase(), documentTypeName, query);
+		Log.i(LOG_ID, "Local results (" + documentTypeName + ") " + cursor.getCount() + " in " + (SystemClock.elapsedRealtime() - start) + "ms");
+		
+		// reloaded like search results, e.g. once a search request failed
 		cursor.setNotificationUri(getContext().getContentResolver(), helper.getSearchUpdateUri());
 		return cursor;
 	}
 	
 	private Cursor suggest(final Uri uri, final String query) {
+		final long start = SystemClock.elapsedRealtime();
 		final SQLiteDatabase db = dbHelper.getReadableDatabase();
 		final String[] documentTypeNames = config.getDocumentTypeNames();
 		final Cursor[] cursors = new Cursor[documentTypeNames.length];
@@ -201,32 +439,139 @@ public class SearchContentProvider extends ContentProvider {
 		}
 		
 		final Cursor cursor = new MergeCursor(cursors);
+		// the rows are read here, this waits for writers without write-ahead logging
+		final int count = cursor.getCount();
+		Log.i(LOG_ID, "Suggest query (" + count + " rows) in " + (SystemClock.elapsedRealtime() - start) + "ms");
 
 		if (query.length() >= MIN_SUGGEST_CHARS) {
-			if (cursor.getCount() == 0) {
-				if (suggestNeedsUpdate(helper.queryHash(query, config.getSuggestQueryOptions().toString()))) {
+			if (count == 0) {
+				final String queryHash = helper.queryHash(query, config.getSuggestQueryOptions().toString());
+				if (suggestNeedsUpdate(queryHash)) {
 					searchServiceHelper.suggest(query);
+					// show what is known locally until the request refines it, only for queries never
+					// answered: an unchanged empty answer doesn't notify, so refined rows would stay
+					final Cursor refined = (FreshnessIndex.getInstance().get(queryHash, true) == FreshnessIndex.MISSING) ? refinePrefix(db, query, queryHash) : null;
+					if (refined != null) {
+						cursor.close();
+						return refined;
+					}
 				}
-			} else if (needsUpdate(cursor)) {
+			} else if (needsUpdate(cursor) && !FreshnessIndex.getInstance().isBackingOff(helper.queryHash(query, config.getSuggestQueryOptions().toString()), true)) {
 				searchServiceHelper.suggest(query);
 			}
 		}
 		return cursor;
 	}
 	
+	/**
+	 * Suggestions of the longest cached prefix of the query that also match
+	 * the query. The cursor is notified like the one of the query itself, so
+	 * it is replaced once the suggestions of the query arrive.
+	 *
+	 * @return	Filtered suggestions, null if no prefix has cached suggestions
+	 */
+	private Cursor refinePrefix(final SQLiteDatabase db, final String query, final String queryHash) {
+		final long start = SystemClock.elapsedRealtime();
+		final String[] documentTypeNames = config.getDocumentTypeNames();
+		final int shortest = Math.max(MIN_SUGGEST_CHARS, query.length() - MAX_REFINED_PREFIXES);
+		for (int length = query.length() - 1; length >= shortest; --length) {
+			final String prefix = query.substring(0, length);
+			final Cursor[] cursors = new Cursor[documentTypeNames.length];
+			for (int i = 0; i < cursors.length; ++i) {
+				cursors[i] = cursorFor(db, documentTypeNames[i], prefix);
+			}
+			final Cursor cursor = new MergeCursor(cursors);
+			try {
+				if (cursor.getCount() == 0) {
+					continue;
+				}
+				final MatrixCursor refined = filterSuggestions(cursor, query);
+				refined.setNotificationUri(getContext().getContentResolver(), helper.suggestUri(queryHash));
+				Log.i(LOG_ID, "Suggest refined from \"" + prefix + "\" (" + refined.getCount() + " of " + cursor.getCount() + " rows) in " + (SystemClock.elapsedRealtime() - start) + "ms");
+				return refined;
+			} finally {
+				cursor.close();
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * @return	Rows whose suggest columns contain every word of the query as a word prefix
+	 */
+	private MatrixCursor filterSuggestions(final Cursor cursor, final String query) {
+		final String[] words = query.trim().toLowerCase().split("\\s+");
+		final String[] columnNames = cursor.getColumnNames();
+		final int[] textColumns = new int[config.getSuggestColumns().length];
+		for (int i = 0; i < textColumns.length; ++i) {
+			textColumns[i] = cursor.getColumnIndex(config.getSuggestColumns()[i]);
+		}
+		
+		final MatrixCursor refined = new MatrixCursor(columnNames);
+		cursor.moveToPosition(-1);
+		while (cursor.moveToNext()) {
+			final StringBuilder text = new StringBuilder();
+			for (final int column : textColumns) {
+				if (column != -1 && !cursor.isNull(column)) {
+					text.append(cursor.getString(column)).append(' ');
+				}
+			}
+			if (!containsWordPrefixes(text.toString().toLowerCase(), words)) {
+				continue;
+			}
+			final String[] row = new String[columnNames.length];
+			for (int column = 0; column < row.length; ++column) {
+				row[column] = cursor.getString(column);
+			}
+			refined.addRow(row);
+		}
+		return refined;
+	}
+	
+	private static boolean containsWordPrefixes(final String text, final String[] words) {
+		for (final String word : words) {
+			boolean found = false;
+			for (int index = text.indexOf(word); index != -1 && !found; index = text.indexOf(word, index + 1)) {
+				found = index == 0 || !Character.isLetterOrDigit(text.charAt(index - 1));
+			}
+			if (!found) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
 	public static String searchStatusType(final boolean isSuggest) {
 		return isSuggest ? "2" : "1";
 	}
 	
+	private static String[] currentGenerationArgs(final String queryHash, final boolean isSuggest) {
+		return new String[] { queryHash, queryHash, searchStatusType(isSuggest) };
+	}
+	
+	/**
+	 * Checked in memory, SearchStatus is only queried the first time
+	 */
 	private boolean suggestNeedsUpdate(final String queryHash) {
-		final String cutoffTimestamp = Long.valueOf(cutOffTime()).toString();
-		final SQLiteDatabase db = dbHelper.getReadableDatabase();
-		final Cursor cursor = db.query(SwiftypeDbHelper.TABLE_SEARCH_STATUS,
-				                       null,
-				                       SUGGEST_NEEDS_UPDATE_QUERY_SELECTION,
-					                   new String[] {queryHash, searchStatusType(true), cutoffTimestamp},
-					                   null, null, null);
-		return cursor.getCount() == 0;
+		final FreshnessIndex freshness = FreshnessIndex.getInstance();
+		if (freshness.isBackingOff(queryHash, true)) {
+			// the loader was notified of a failed request, asking again would fail the same way
+			return false;
+		}
+		FreshnessIndex.Entry status = freshness.get(queryHash, true);
+		if (status == null) {
+			final Cursor cursor = dbHelper.getReadableDatabase().query(SwiftypeDbHelper.TABLE_SEARCH_STATUS,
+																	   FreshnessIndex.COLUMNS,
+																	   FreshnessIndex.SELECTION,
+																	   new String[] {queryHash, searchStatusType(true)},
+																	   null, null, null);
+			try {
+				status = freshness.load(queryHash, true, cursor);
+			} finally {
+				cursor.close();
+			}
+		}
+		return status.needsUpdate();
 	}
 	
 	private boolean needsUpdate(final Cursor cursor) {
@@ -254,13 +599,20 @@ public class SearchContentProvider extends ContentProvider {
 	
 	private Cursor cursorFor(final SQLiteDatabase db, final String documentTypeName, final String query) {
 		final String queryHash = helper.queryHash(query, config.getSuggestQueryOptions().toString());
-		SQLiteQueryBuilder suggest = config.getDocumentTypeConfig(documentTypeName).getSuggestQuery();
-		final Cursor cursor = suggest.query(db,
-				                            null,
-				                            SwiftypeDbHelper.COLUMN_QUERY_HASH + " = ?",
-				                            new String[] { queryHash },
-				                            null, null, null);
+		final String searchType = searchStatusType(true);
+		final long version = resultCache.getVersion();
+		Cursor cursor = resultCache.get(queryHash, searchType, documentTypeName);
+		if (cursor == null) {
+			SQLiteQueryBuilder suggest = config.getDocumentTypeConfig(documentTypeName).getSuggestQuery();
+			cursor = resultCache.put(queryHash, searchType, documentTypeName, version,
+									 suggest.query(db,
+					                               null,
+					                               CURRENT_GENERATION_SELECTION,
+					                               currentGenerationArgs(queryHash, true),
+					                               null, null, null));
+		}
 		cursor.setNotificationUri(getContext().getContentResolver(), helper.suggestUri(queryHash));
+		evictor.recordAccess(queryHash, true);
 		return cursor;
 	}
 	
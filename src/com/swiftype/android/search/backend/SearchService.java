@@ -1,6 +1,12 @@
 package com.swiftype.android.search.backend;
 
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.json.JSONObject;
 
@@ -21,7 +27,9 @@ import com.swiftype.android.search.helper.ResultParser;
 import com.swiftype.android.search.helper.SearchContentProviderHelper;
 import com.swiftype.android.search.helper.SwiftypeDbHelper;
 import com.swiftype.api.search.Engine;
-import com.swiftype.api.search.Engine.OnApiAnswerHandler;
+import com.swiftype.api.search.Engine.OnApiStreamHandler;
+import com.swiftype.api.search.RequestHandle;
+import com.swiftype.api.search.ResponseValidator;
 import com.swiftype.api.search.SwiftypeQueryOptions;
 
 public class SearchService extends IntentService {
@@ -35,13 +43,18 @@ public class SearchService extends IntentService {
 	public static final int REQUEST_SUGGEST = 2;
 	public static final int REQUEST_AUTOSELECT = 3;
 	public static final int REQUEST_CLICKTHROUGH = 4;
+	static final int REQUEST_FLUSH_ANALYTICS = 6;
 	
 	private static final String LOG_ID = SearchService.class.getSimpleName();
-	private static final String NEEDS_UPDATE_QUERY_SELECTION = SwiftypeDbHelper.COLUMN_QUERY_HASH + " = ? AND " + SwiftypeDbHelper.COLUMN_SEARCH_TYPE + " = ?" + " AND " + SwiftypeDbHelper.COLUMN_TIMESTAMP + " > ?";
+	private static final int REQUEST_PREFETCH = 5;
+	private static final InFlightRequests IN_FLIGHT = new InFlightRequests();
+	private static final FreshnessIndex FRESHNESS = FreshnessIndex.getInstance();
 	
 	private SwiftypeConfig config;
 	private SearchContentProviderHelper helper;
+	private AnalyticsQueue analyticsQueue;
 	private Engine engine;
+	private static Engine sharedEngine;
 	
 	public SearchService() {
 		super("SwiftypeSearchServiceWorker");
@@ -55,13 +68,18 @@ public class SearchService extends IntentService {
 			final Resources resources = getResources();
 			config = new SwiftypeConfig(resources);
 			helper = new SearchContentProviderHelper(resources);
-			final String engineKey = getString(R.string.engine_key);
-			Log.i(LOG_ID, "Engine initialized with key: " + engineKey);
-			engine = new Engine(engineKey);
+			engine = getSharedEngine(getString(R.string.engine_key));
+			analyticsQueue = new AnalyticsQueue(this, config, helper);
+			analyticsQueue.resume();
 		}
 		
-		final String query = searchIntent.getStringExtra(PARAM_QUERY).toLowerCase();
 		final int requestType = searchIntent.getIntExtra(PARAM_REQUEST_TYPE, 0);
+		if (requestType == REQUEST_FLUSH_ANALYTICS) {
+			analyticsQueue.flush(engine);
+			return;
+		}
+		
+		final String query = searchIntent.getStringExtra(PARAM_QUERY).toLowerCase();
 		switch (requestType) {
 		case REQUEST_SUGGEST:
 			executeSuggest(query, searchIntent);
@@ -70,16 +88,29 @@ public class SearchService extends IntentService {
 			executeSearch(query, searchIntent);
 			break;
 		case REQUEST_AUTOSELECT:
-			engine.logAutoselect(searchIntent.getStringExtra(PARAM_DOCUMENT_ID), searchIntent.getStringExtra(PARAM_QUERY));
+			analyticsQueue.enqueue(engine.autoselectPath(searchIntent.getStringExtra(PARAM_DOCUMENT_ID), searchIntent.getStringExtra(PARAM_QUERY)), engine);
 			break;
 		case REQUEST_CLICKTHROUGH:
-			engine.logClickthrough(searchIntent.getStringExtra(PARAM_DOCUMENT_ID), searchIntent.getStringExtra(PARAM_QUERY));
+			analyticsQueue.enqueue(engine.clickthroughPath(searchIntent.getStringExtra(PARAM_DOCUMENT_ID), searchIntent.getStringExtra(PARAM_QUERY)), engine);
 			break;
 		default:
 			throw new IllegalArgumentException();
 		}
 	}
 	
+	/**
+	 * The service is stopped whenever its queue runs empty, so the engine is
+	 * kept for the process to be able to abort its requests later on. The
+	 * provider shares its executor for background work.
+	 */
+	static synchronized Engine getSharedEngine(final String engineKey) {
+		if (sharedEngine == null) {
+			Log.i(LOG_ID, "Engine initialized with key: " + engineKey);
+			sharedEngine = new Engine(engineKey);
+		}
+		return sharedEngine;
+	}
+	
 	private void executeSearch(final String query, final Intent intent) {
 		SwiftypeQueryOptions options;
 		if (intent.hasExtra(PARAM_OPTIONS)) {
@@ -90,9 +121,23 @@ public class SearchService extends IntentService {
 		final String queryHash = helper.queryHash(query, options.toString());
 		final Uri uri = helper.searchUri(queryHash);
 		
-		if (needsUpdate(queryHash, false)) {
-			SearchApiRequestHandler handler = new SearchApiRequestHandler(uri, queryHash);
-			engine.search(handler, query, options);
+		if (!SearchServiceHelper.isConnected(this)) {
+			// the results are queried from the local index meanwhile
+			Log.i(LOG_ID, "Offline, search not sent: " + queryHash);
+			SearchServiceHelper.searchFinished(getContentResolver(), helper);
+			return;
+		}
+		
+		final FreshnessIndex.Entry status = loadSearchStatus(queryHash, false);
+		if (status.needsUpdate()) {
+			final ChangeNotifier notifier = new ChangeNotifier(getContentResolver(), helper, helper.getSearchUpdateUri(), true);
+			if (IN_FLIGHT.attach(REQUEST_SEARCH, queryHash, notifier) || IN_FLIGHT.attach(REQUEST_PREFETCH, queryHash, notifier)) {
+				Log.i(LOG_ID, "Attached to pending search: " + queryHash);
+				return;
+			}
+			IN_FLIGHT.start(REQUEST_SEARCH, queryHash, notifier);
+			SearchApiRequestHandler handler = new SearchApiRequestHandler(uri, queryHash, status.validator, REQUEST_SEARCH);
+			track(REQUEST_SEARCH, handler, engine.search(handler, query, config.withFetchFields(options, false), status.validator, config.getSearchBudget()));
 		} else {
 			SearchServiceHelper.searchFinished(getContentResolver(), helper);
 		}
@@ -108,120 +153,451 @@ public class SearchService extends IntentService {
 		final String queryHash = helper.queryHash(query, options.toString());
 		final Uri uri = helper.suggestUri(queryHash);
 		
-		if (needsUpdate(queryHash, true)) {
-			SuggestApiRequestHandler handler = new SuggestApiRequestHandler(uri, queryHash);
-			engine.suggest(handler, query, options);
+		// the prefix changed, so the prefetched search is probably not needed anymore
+		IN_FLIGHT.cancel(REQUEST_PREFETCH);
+		
+		final FreshnessIndex.Entry status = loadSearchStatus(queryHash, true);
+		if (status.needsUpdate()) {
+			final ChangeNotifier notifier = new ChangeNotifier(getContentResolver(), helper, uri, false);
+			if (IN_FLIGHT.attach(REQUEST_SUGGEST, queryHash, notifier)) {
+				Log.i(LOG_ID, "Attached to pending suggest: " + queryHash);
+				return;
+			}
+			IN_FLIGHT.start(REQUEST_SUGGEST, queryHash, notifier);
+			SuggestApiRequestHandler handler = new SuggestApiRequestHandler(uri, queryHash, status.validator, query);
+			track(REQUEST_SUGGEST, handler, engine.suggest(handler, query, config.withFetchFields(options, true), status.validator, config.getSuggestBudget()));
+		}
+	}
+	
+	/**
+	 * Speculatively fetch the search results the user is likely to submit
+	 * next, depending on the configured prefetch policy.
+	 * 
+	 * @param prefix		Query of the suggestions
+	 * @param suggestions	Suggest rows in the order of the response
+	 */
+	private void prefetch(final String prefix, final List<ContentValues> suggestions) {
+		final String query;
+		switch (config.getSearchPrefetch()) {
+		case SwiftypeConfig.PREFETCH_PREFIX:
+			query = prefix;
+			break;
+		case SwiftypeConfig.PREFETCH_TOP_SUGGESTION:
+			query = topSuggestion(suggestions);
+			break;
+		default:
+			return;
+		}
+		if (query == null || query.length() == 0) {
+			return;
+		}
+		if (!engine.allowSpeculation()) {
+			Log.i(LOG_ID, "Skip prefetch on " + engine.getApiConnection().getNetworkQuality());
+			return;
+		}
+		
+		final SwiftypeQueryOptions options = config.getQueryOptions();
+		final String queryHash = helper.queryHash(query, options.toString());
+		if (IN_FLIGHT.isPending(REQUEST_SEARCH, queryHash) || IN_FLIGHT.isPending(REQUEST_PREFETCH, queryHash)) {
+			return;
 		}
+		final FreshnessIndex.Entry status = loadSearchStatus(queryHash, false);
+		if (!status.needsUpdate()) {
+			return;
+		}
+		if (!IN_FLIGHT.cancel(REQUEST_PREFETCH)) {
+			// a submitted search waits for the running prefetch
+			return;
+		}
+		
+		Log.i(LOG_ID, "Prefetch search: '" + query + "'");
+		IN_FLIGHT.start(REQUEST_PREFETCH, queryHash, null);
+		final SearchApiRequestHandler handler = new SearchApiRequestHandler(helper.searchUri(queryHash), queryHash, status.validator, REQUEST_PREFETCH);
+		track(REQUEST_PREFETCH, handler, engine.prefetch(handler, query, config.withFetchFields(options, false), status.validator));
+	}
+	
+	private void track(final int requestType, final ApiStreamHandler handler, final RequestHandle handle) {
+		handler.setHandle(handle);
+		if (requestType == REQUEST_SUGGEST) {
+			// added first, so the backoff is in place before the waiting loaders are notified of the failure
+			handle.addCallback(new RequestHandle.Callback() {
+				@Override
+				public void onDone(final RequestHandle handle) {
+					if (!handle.isCancelled() && !handler.isAnswered()) {
+						FRESHNESS.fail(handler.queryHash, true);
+					}
+				}
+			});
+		}
+		IN_FLIGHT.track(requestType, handler.queryHash, handle, handler);
 	}
 	
-	private boolean needsUpdate(final String queryHash, final boolean isSuggest) {
-		String cutoffTimestamp = Long.valueOf(now() - SearchContentProvider.CACHE_TIME).toString();
+	@SuppressLint("DefaultLocale")
+	private String topSuggestion(final List<ContentValues> suggestions) {
+		if (suggestions.isEmpty()) {
+			return null;
+		}
+		final ContentValues top = suggestions.get(0);
+		final DocumentTypeConfig documentTypeConfig = config.getDocumentTypeConfig(top.getAsString(SwiftypeDbHelper.COLUMN_DOCUMENT_TYPE));
+		final String suggestion = top.getAsString(documentTypeConfig.getSuggestDisplayFields()[0]);
+		return (suggestion == null) ? null : suggestion.trim().toLowerCase();
+	}
+	
+	/**
+	 * @return	Age and validators of the cached results, from memory after the first check
+	 */
+	private FreshnessIndex.Entry loadSearchStatus(final String queryHash, final boolean isSuggest) {
+		final FreshnessIndex.Entry status = FRESHNESS.get(queryHash, isSuggest);
+		if (status != null) {
+			return status;
+		}
 		final Cursor cursor = getContentResolver().query(helper.searchStatusUri(queryHash),
-				                                         null,
-				                                         NEEDS_UPDATE_QUERY_SELECTION,
-				                                         new String[] {queryHash, SearchContentProvider.searchStatusType(isSuggest), cutoffTimestamp},
+				                                         FreshnessIndex.COLUMNS,
+				                                         FreshnessIndex.SELECTION,
+				                                         new String[] {queryHash, SearchContentProvider.searchStatusType(isSuggest)},
 				                                         null);
-
-        Boolean hasValidResults = cursor.getCount() == 0;
-        cursor.close();
-        return hasValidResults;
+		try {
+			final FreshnessIndex.Entry loaded = FRESHNESS.load(queryHash, isSuggest, cursor);
+			Log.i(LOG_ID, "Search status loaded, freshness index " + FRESHNESS);
+			return loaded;
+		} finally {
+			if (cursor != null) {
+				cursor.close();
+			}
+		}
 	}
 	
-	private void updateSearchStatus(final String queryHash, final boolean isSuggest) {
+	/**
+	 * Store the validators of new results and flip the query to their
+	 * generation, which makes them visible to readers at once
+	 */
+	private void updateSearchStatus(final String queryHash, final boolean isSuggest, final ResponseValidator validator, final long generation) {
+		final long timestamp = now();
 		ContentValues values = new ContentValues();
 		values.put(SwiftypeDbHelper.COLUMN_SEARCH_TYPE, SearchContentProvider.searchStatusType(isSuggest));
-		values.put(SwiftypeDbHelper.COLUMN_TIMESTAMP, now());
+		values.put(SwiftypeDbHelper.COLUMN_TIMESTAMP, timestamp);
+		values.put(SwiftypeDbHelper.COLUMN_ETAG, validator.getEtag());
+		values.put(SwiftypeDbHelper.COLUMN_LAST_MODIFIED, validator.getLastModified());
+		values.put(SwiftypeDbHelper.COLUMN_BODY_HASH, validator.getBodyHash());
+		values.put(SwiftypeDbHelper.COLUMN_GENERATION, generation);
+		values.put(SwiftypeDbHelper.COLUMN_LAST_ACCESS, timestamp);
 		getContentResolver().insert(helper.searchStatusUri(queryHash), values);
+		FRESHNESS.put(queryHash, isSuggest, timestamp, validator);
+	}
+	
+	/**
+	 * The cached results are still current, only extend their lifetime
+	 */
+	private void touchSearchStatus(final String queryHash, final boolean isSuggest) {
+		final long timestamp = now();
+		ContentValues values = new ContentValues();
+		values.put(SwiftypeDbHelper.COLUMN_TIMESTAMP, timestamp);
+		getContentResolver().update(helper.searchStatusUri(queryHash),
+									values,
+									FreshnessIndex.SELECTION,
+									new String[] {queryHash, SearchContentProvider.searchStatusType(isSuggest)});
+		FRESHNESS.touch(queryHash, isSuggest, timestamp);
 	}
 	
 	private long now() {
 		return new Date().getTime();
 	}
 	
-	private class SearchApiRequestHandler implements OnApiAnswerHandler {
+	/**
+	 * Notifies the cursors of a search or suggest, once for all requests
+	 * attached to the same pending API request.
+	 */
+	private static class ChangeNotifier implements Runnable, InFlightRequests.OnReplacedListener {
+		private final ContentResolver resolver;
+		private final SearchContentProviderHelper helper;
 		private final Uri uri;
-		private final String queryHash;
+		private final boolean finishesSearch;
 		
-		public SearchApiRequestHandler(final Uri uri, final String queryHash) {
+		public ChangeNotifier(final ContentResolver resolver, final SearchContentProviderHelper helper, final Uri uri, final boolean finishesSearch) {
+			this.resolver = resolver;
+			this.helper = helper;
+			this.uri = uri;
+			this.finishesSearch = finishesSearch;
+		}
+		
+		@Override
+		public void run() {
+			if (finishesSearch) {
+				SearchServiceHelper.searchFinished(resolver, helper);
+			} else {
+				resolver.notifyChange(uri, null);
+			}
+		}
+		
+		/**
+		 * The replacing search finishes the search for the UI, finishing it
+		 * now would show its results before they arrived
+		 */
+		@Override
+		public void onReplaced() {
+			if (!finishesSearch) {
+				resolver.notifyChange(uri, null);
+			}
+		}
+		
+		@Override
+		public boolean equals(final Object other) {
+			if (!(other instanceof ChangeNotifier)) {
+				return false;
+			}
+			final ChangeNotifier notifier = (ChangeNotifier) other;
+			return finishesSearch == notifier.finishesSearch && uri.equals(notifier.uri);
+		}
+		
+		@Override
+		public int hashCode() {
+			return uri.hashCode();
+		}
+	}
+	
+	/**
+	 * Collects the rows of a streamed response and writes them to the
+	 * SearchContentProvider once the response is complete. Responses that
+	 * are unchanged compared to the cached results are not written again.
+	 */
+	private abstract class ApiStreamHandler implements OnApiStreamHandler, InFlightRequests.Answerable {
+		protected final Uri uri;
+		protected final String queryHash;
+		private final ResponseValidator cachedValidator;
+		private final List<ContentValues> rows = new ArrayList<ContentValues>();
+		private final long timestamp = now();
+		private volatile RequestHandle handle;
+		private volatile boolean answered = false;
+		
+		/**
+		 * @param cachedValidator	Validator of the cached results, null if there are none
+		 */
+		public ApiStreamHandler(final Uri uri, final String queryHash, final ResponseValidator cachedValidator) {
 			this.uri = uri;
 			this.queryHash = queryHash;
+			this.cachedValidator = cachedValidator;
+		}
+		
+		protected abstract ContentValues toRow(final String documentTypeName, final JSONObject record);
+		
+		/**
+		 * Store the received results
+		 */
+		protected abstract void onChanged(final ResponseValidator validator);
+		
+		/**
+		 * The cached results are identical to the response
+		 */
+		protected abstract void onUnchanged();
+		
+		public void setHandle(final RequestHandle handle) {
+			this.handle = handle;
+		}
+		
+		/**
+		 * @return	True if the request was cancelled and its results must not be written
+		 */
+		protected boolean isCancelled() {
+			final RequestHandle current = handle;
+			return current != null && current.isCancelled();
+		}
+		
+		@Override
+		public boolean isAnswered() {
+			return answered;
+		}
+		
+		@Override
+		public void onComplete(final ResponseValidator validator) {
+			answered = true;
+			if (isCancelled()) {
+				Log.i(LOG_ID, "Skip results of cancelled request: " + queryHash);
+			} else if (validator.hasSameBody(cachedValidator)) {
+				Log.i(LOG_ID, "Unchanged response: " + queryHash);
+				onUnchanged();
+			} else {
+				onChanged(validator);
+			}
+		}
+		
+		@Override
+		public void onNotModified() {
+			answered = true;
+			if (!isCancelled()) {
+				onUnchanged();
+			}
+		}
+		
+		@Override
+		public void onDocumentType(final String documentTypeName) {
+			// not needed by default
+		}
+		
+		@Override
+		public void onRecord(final String documentTypeName, final JSONObject record) {
+			final ContentValues row = toRow(documentTypeName, record);
+			row.put(SwiftypeDbHelper.COLUMN_QUERY_HASH, queryHash);
+			row.put(SwiftypeDbHelper.COLUMN_TIMESTAMP, timestamp);
+			row.put(SwiftypeDbHelper.COLUMN_GENERATION, timestamp);
+			rows.add(row);
+		}
+		
+		@Override
+		public void onInfo(final String documentTypeName, final JSONObject info) {
+			// not needed by default
+		}
+		
+		protected long getTimestamp() {
+			return timestamp;
+		}
+		
+		/**
+		 * @return	Generation the results of this request are stored under
+		 */
+		protected long getGeneration() {
+			return timestamp;
+		}
+		
+		protected List<ContentValues> getRows() {
+			return rows;
+		}
+		
+		/**
+		 * Insert the rows under the generation of this request. They stay
+		 * invisible until the search status is flipped to it, so observers
+		 * are notified after that instead.
+		 */
+		protected void insertRows(final ContentResolver resolver) {
+			resolver.bulkInsert(helper.withoutNotification(uri), rows.toArray(new ContentValues[rows.size()]));
+		}
+		
+		/**
+		 * Delete the generations this one replaced in the background. Readers
+		 * only see the current generation, so nobody has to be notified.
+		 */
+		protected void collectGarbage(final ContentResolver resolver, final Uri ... uris) {
+			final String[] selectionArgs = { queryHash, Long.toString(getGeneration()) };
+			engine.getExecutor().executeBackground(new Runnable() {
+				@Override
+				public void run() {
+					int deleted = 0;
+					for (final Uri garbageUri : uris) {
+						deleted += resolver.delete(garbageUri, SearchContentProvider.OLD_GENERATION_SELECTION, selectionArgs);
+					}
+					Log.i(LOG_ID, "Deleted " + deleted + " rows of old generations: " + queryHash);
+				}
+			});
+		}
+	}
+	
+	private class SearchApiRequestHandler extends ApiStreamHandler {
+		private final Set<String> documentTypeNames = new LinkedHashSet<String>();
+		private final Map<String, JSONObject> infos = new HashMap<String, JSONObject>();
+		private final int requestType;
+		
+		/**
+		 * @param requestType	REQUEST_SEARCH or REQUEST_PREFETCH
+		 */
+		public SearchApiRequestHandler(final Uri uri, final String queryHash, final ResponseValidator cachedValidator, final int requestType) {
+			super(uri, queryHash, cachedValidator);
+			this.requestType = requestType;
+		}
+		
+		/**
+		 * Document types without records get a status row as well
+		 */
+		@Override
+		public void onDocumentType(final String documentTypeName) {
+			documentTypeNames.add(documentTypeName);
+		}
+		
+		@Override
+		protected ContentValues toRow(final String documentTypeName, final JSONObject record) {
+			final DocumentTypeConfig documentTypeConfig = config.getDocumentTypeConfig(documentTypeName);
+			return ResultParser.getResult(documentTypeName, record, documentTypeConfig.getSearchFields(), null);
+		}
+		
+		@Override
+		public void onInfo(final String documentTypeName, final JSONObject info) {
+			infos.put(documentTypeName, info);
 		}
 
 		@Override
-		public void onApiAnswer(final JSONObject response) {
-			final ResultParser resultParser = new ResultParser(response);
+		protected void onChanged(final ResponseValidator validator) {
 			final ContentResolver resolver = getContentResolver();
+			insertRows(resolver);
 			
-			resolver.delete(uri, SwiftypeDbHelper.COLUMN_QUERY_HASH + " = ?", new String[] { queryHash });
-			
-			long timestamp = now();
-			final String[] documentTypeNames = resultParser.getDocumentTypeNames();
-			final int namesCount = documentTypeNames.length;
-			final ContentValues[] infoRows = new ContentValues[namesCount];
-			for (int i = 0; i < namesCount; ++i) {
-				final String documentTypeName = documentTypeNames[i];
-				final DocumentTypeConfig documentTypeConfig = config.getDocumentTypeConfig(documentTypeName);
-				final ContentValues[] resultRows = resultParser.getResults(documentTypeName, documentTypeConfig.getSearchFields());
-				
-				for (ContentValues row : resultRows) {
-					row.put(SwiftypeDbHelper.COLUMN_QUERY_HASH, queryHash);
-					row.put(SwiftypeDbHelper.COLUMN_TIMESTAMP, timestamp);
-				}
-				
-				resolver.bulkInsert(uri, resultRows);
-				
-				final ContentValues info = resultParser.getInfo(documentTypeName);
+			final ContentValues[] infoRows = new ContentValues[documentTypeNames.size()];
+			int i = 0;
+			for (final String documentTypeName : documentTypeNames) {
+				final ContentValues info = ResultParser.getInfo(documentTypeName, infos.get(documentTypeName));
 				info.put(SwiftypeDbHelper.COLUMN_QUERY_HASH, queryHash);
-				info.put(SwiftypeDbHelper.COLUMN_TIMESTAMP, timestamp);
-				infoRows[i] = info;
+				info.put(SwiftypeDbHelper.COLUMN_TIMESTAMP, getTimestamp());
+				info.put(SwiftypeDbHelper.COLUMN_GENERATION, getGeneration());
+				infoRows[i++] = info;
 			}
 			
 			Uri resultStatusUri = helper.resultStatusUri(queryHash);
-			resolver.bulkInsert(resultStatusUri, infoRows);
+			resolver.bulkInsert(helper.withoutNotification(resultStatusUri), infoRows);
 			
-			updateSearchStatus(queryHash, false);
-			
-			SearchServiceHelper.searchFinished(resolver, helper);
+			updateSearchStatus(queryHash, false, validator, getGeneration());
+			finished(resolver);
+			collectGarbage(resolver, uri, resultStatusUri);
+		}
+		
+		@Override
+		protected void onUnchanged() {
+			touchSearchStatus(queryHash, false);
+			// the search is still in progress for the UI until it is finished
+			finished(getContentResolver());
+		}
+		
+		private void finished(final ContentResolver resolver) {
+			if (!IN_FLIGHT.complete(requestType, queryHash) && requestType == REQUEST_SEARCH) {
+				SearchServiceHelper.searchFinished(resolver, helper);
+			}
 		}
 	}
 	
-	private class SuggestApiRequestHandler implements OnApiAnswerHandler {
-		private final Uri uri;
-		private final String queryHash;
+	private class SuggestApiRequestHandler extends ApiStreamHandler {
+		private final String query;
 		
-		public SuggestApiRequestHandler(final Uri uri, final String queryHash) {
-			this.uri = uri;
-			this.queryHash = queryHash;
+		public SuggestApiRequestHandler(final Uri uri, final String queryHash, final ResponseValidator cachedValidator, final String query) {
+			super(uri, queryHash, cachedValidator);
+			this.query = query;
+		}
+		
+		@Override
+		protected ContentValues toRow(final String documentTypeName, final JSONObject record) {
+			final DocumentTypeConfig documentTypeConfig = config.getDocumentTypeConfig(documentTypeName);
+			return ResultParser.getResult(documentTypeName,
+										  record,
+										  documentTypeConfig.getSuggestFields(),
+										  documentTypeConfig.getIdentifierField());
 		}
 
 		@Override
-		public void onApiAnswer(final JSONObject response) {
-			final ResultParser resultParser = new ResultParser(response);
+		protected void onChanged(final ResponseValidator validator) {
 			final ContentResolver resolver = getContentResolver();
+			insertRows(resolver);
 			
-			resolver.delete(uri, SwiftypeDbHelper.COLUMN_QUERY_HASH + " = ?", new String[] {queryHash});
+			updateSearchStatus(queryHash, true, validator, getGeneration());
+			SuggestScheduler.recordRoundTrip(now() - getTimestamp());
 			
-			long timestamp = now();
-			final String[] documentTypeNames = resultParser.getDocumentTypeNames();
-			final int namesCount = documentTypeNames.length;
-			for (int i = 0; i < namesCount; ++i) {
-				final String documentTypeName = documentTypeNames[i];
-				final DocumentTypeConfig documentTypeConfig = config.getDocumentTypeConfig(documentTypeName);
-				final ContentValues[] resultRows = resultParser.getResults(documentTypeName,
-						                                                   documentTypeConfig.getSuggestFields(),
-						                                                   documentTypeConfig.getIdentifierField());
-				
-				for (final ContentValues row : resultRows) {
-					row.put(SwiftypeDbHelper.COLUMN_QUERY_HASH, queryHash);
-					row.put(SwiftypeDbHelper.COLUMN_TIMESTAMP, timestamp);
-				}
-				
-				resolver.bulkInsert(uri, resultRows);
+			if (!IN_FLIGHT.complete(REQUEST_SUGGEST, queryHash)) {
+				resolver.notifyChange(uri, null);
 			}
+			collectGarbage(resolver, uri);
 			
-			updateSearchStatus(queryHash, true);
-			
-			resolver.notifyChange(uri, null);
+			prefetch(query, getRows());
+		}
+		
+		@Override
+		protected void onUnchanged() {
+			touchSearchStatus(queryHash, true);
+			SuggestScheduler.recordRoundTrip(now() - getTimestamp());
+			// attached requests already see the cached suggestions
+			IN_FLIGHT.discard(REQUEST_SUGGEST, queryHash);
 		}
 	}
 }
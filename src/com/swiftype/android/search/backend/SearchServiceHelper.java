@@ -4,6 +4,8 @@ import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.res.Resources;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 
 import com.swiftype.android.search.SwiftypeConfig;
 import com.swiftype.android.search.helper.SearchContentProviderHelper;
@@ -14,12 +16,14 @@ public class SearchServiceHelper {
 	private final Context context;
 	private final SwiftypeConfig config;
 	private final SearchContentProviderHelper searchContentProviderHelper;
+	private final SuggestScheduler suggestScheduler;
 
 	public SearchServiceHelper(final Context context) {
 		this.context = context;
 		final Resources resources = context.getResources();
 		this.config = new SwiftypeConfig(resources);
 		this.searchContentProviderHelper = new SearchContentProviderHelper(resources);
+		this.suggestScheduler = SuggestScheduler.getInstance(config);
 	}
 	
 	/**
@@ -30,12 +34,29 @@ public class SearchServiceHelper {
 	}
 	
 	/**
-	 * Start suggest API request and update SearchContentProvider if necessary
+	 * Check if search requests can reach the API, otherwise results should
+	 * be queried from the local index of SearchContentProvider
+	 */
+	public static boolean isConnected(final Context context) {
+		final ConnectivityManager connectivity = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+		final NetworkInfo network = (connectivity == null) ? null : connectivity.getActiveNetworkInfo();
+		return network != null && network.isConnected();
+	}
+	
+	/**
+	 * Start suggest API request and update SearchContentProvider if necessary.
+	 * The request is sent once typing pauses and replaces earlier suggests
+	 * that were not sent yet.
 	 * 
 	 * @param query		Suggest query
 	 */
 	public void suggest(final String query) {
-		searchIntent(query, SearchService.REQUEST_SUGGEST, config.getSuggestQueryOptions());
+		suggestScheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				searchIntent(query, SearchService.REQUEST_SUGGEST, config.getSuggestQueryOptions());
+			}
+		});
 	}
 	
 	/**
@@ -55,6 +76,7 @@ public class SearchServiceHelper {
 	 * @param options	Search options (use search(query) to use default options)
 	 */
 	public void search(final String query, final SwiftypeQueryOptions options) {
+		suggestScheduler.cancel();
 		searchStarted();
 		searchIntent(query, SearchService.REQUEST_SEARCH, options);
 	}
@@ -0,0 +1,133 @@
+package com.swiftype.android.search.backend;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.swiftype.android.search.SwiftypeConfig;
+
+/**
+ * Debounces suggest API requests while the user is typing. A request is only
+ * sent once no newer query arrived for a delay that follows the measured
+ * suggest round trip time, and never more often than the configured minimum
+ * interval. All callers in the process share one scheduler, so suggests
+ * from the SearchManager dialog and the SearchInputFragment are limited together.
+ */
+public class SuggestScheduler {
+	/**
+	 * Weight of a new round trip measurement in the moving average
+	 */
+	private static final double ROUND_TRIP_WEIGHT = 0.25;
+	
+	/**
+	 * Part of the round trip time waited for further keystrokes
+	 */
+	private static final double ROUND_TRIP_DELAY_FACTOR = 0.5;
+	
+	private static SuggestScheduler instance;
+	
+	private final Handler handler = new Handler(Looper.getMainLooper());
+	private final int minDelay;
+	private final int maxDelay;
+	private final int minInterval;
+	private Runnable pendingRequest;
+	private long lastRequest = 0;
+	private double roundTrip = -1;
+	private long scheduled = 0;
+	private long sent = 0;
+	
+	private SuggestScheduler(final SwiftypeConfig config) {
+		minDelay = config.getSuggestMinDelay();
+		maxDelay = config.getSuggestMaxDelay();
+		minInterval = config.getSuggestMinInterval();
+	}
+	
+	public static synchronized SuggestScheduler getInstance(final SwiftypeConfig config) {
+		if (instance == null) {
+			instance = new SuggestScheduler(config);
+		}
+		return instance;
+	}
+	
+	/**
+	 * Record the round trip time of a suggest API request
+	 */
+	static void recordRoundTrip(final long millis) {
+		final SuggestScheduler scheduler;
+		synchronized (SuggestScheduler.class) {
+			scheduler = instance;
+		}
+		if (scheduler != null) {
+			scheduler.updateRoundTrip(millis);
+		}
+	}
+	
+	/**
+	 * Replace any pending suggest request with the given one
+	 *
+	 * @param request	Sends the suggest request, run on the main thread
+	 */
+	public synchronized void schedule(final Runnable request) {
+		cancelPending();
+		++scheduled;
+		
+		pendingRequest = new Runnable() {
+			@Override
+			public void run() {
+				synchronized (SuggestScheduler.this) {
+					if (pendingRequest != this) {
+						return;
+					}
+					pendingRequest = null;
+					lastRequest = SystemClock.uptimeMillis();
+					++sent;
+				}
+				request.run();
+			}
+		};
+		handler.postDelayed(pendingRequest, getCurrentDelay());
+	}
+	
+	/**
+	 * Drop the pending suggest request, e.g. because the query was submitted
+	 */
+	public synchronized void cancel() {
+		cancelPending();
+	}
+	
+	/**
+	 * @return	Delay in milliseconds a suggest request scheduled now would wait
+	 */
+	public synchronized long getCurrentDelay() {
+		long delay = (roundTrip < 0) ? minDelay : (long) (roundTrip * ROUND_TRIP_DELAY_FACTOR);
+		delay = Math.max(minDelay, Math.min(maxDelay, delay));
+		
+		final long nextAllowed = lastRequest + minInterval - SystemClock.uptimeMillis();
+		return Math.max(delay, nextAllowed);
+	}
+	
+	/**
+	 * @return	Number of suggest requests scheduled
+	 */
+	public synchronized long getScheduledCount() {
+		return scheduled;
+	}
+	
+	/**
+	 * @return	Number of suggest requests actually sent
+	 */
+	public synchronized long getSentCount() {
+		return sent;
+	}
+	
+	private synchronized void updateRoundTrip(final long millis) {
+		roundTrip = (roundTrip < 0) ? millis : roundTrip + ROUND_TRIP_WEIGHT * (millis - roundTrip);
+	}
+	
+	private void cancelPending() {
+		if (pendingRequest != null) {
+			handler.removeCallbacks(pendingRequest);
+			pendingRequest = null;
+		}
+	}
+}
@@ -48,28 +48,37 @@ public class ResultParser {
 		if (documentTypeResults == null) {
 			return EMTPY_RESULTS;
 		}
-		final boolean isSuggest = (suggestIdentifierField != null);
 		
 		final int resultCount = documentTypeResults.length();
 		final ContentValues[] results = new ContentValues[resultCount];
 		for (int i = 0; i < resultCount; ++i) {
-			final JSONObject result = documentTypeResults.optJSONObject(i);
-			final ContentValues resultValues = extractResultFields(result, fields, isSuggest);
-			resultValues.put(SwiftypeDbHelper.COLUMN_DOCUMENT_TYPE, documentTypeName);
-			
-			if (isSuggest) {
-				resultValues.put(SearchManager.SUGGEST_COLUMN_INTENT_DATA, result.optString(SwiftypeDbHelper.COLUMN_DOCUMENT_ID));
-				resultValues.put(SearchManager.SUGGEST_COLUMN_INTENT_EXTRA_DATA, documentTypeName + " " + result.optString(suggestIdentifierField));
-			}
-			
-			results[i] = resultValues;
+			results[i] = getResult(documentTypeName, documentTypeResults.optJSONObject(i), fields, suggestIdentifierField);
 		}
 		return results;
 	}
 	
+	/**
+	 * Convert a single result record, e.g. one delivered by a streaming request
+	 * 
+	 * @param suggestIdentifierField	Identifier field for suggest results or null for search results
+	 */
+	public static ContentValues getResult(final String documentTypeName, final JSONObject result, final String[] fields, final String suggestIdentifierField) {
+		final boolean isSuggest = (suggestIdentifierField != null);
+		final ContentValues resultValues = extractResultFields(result, fields, isSuggest);
+		resultValues.put(SwiftypeDbHelper.COLUMN_DOCUMENT_TYPE, documentTypeName);
+		
+		if (isSuggest) {
+			resultValues.put(SearchManager.SUGGEST_COLUMN_INTENT_DATA, result.optString(SwiftypeDbHelper.COLUMN_DOCUMENT_ID));
+			resultValues.put(SearchManager.SUGGEST_COLUMN_INTENT_EXTRA_DATA, documentTypeName + " " + result.optString(suggestIdentifierField));
+		}
+		return resultValues;
+	}
+	
 	public ContentValues getInfo(final String documentTypeName) {
-		final JSONObject documentTypeInfo = info.optJSONObject(documentTypeName);
-
+		return getInfo(documentTypeName, (info == null) ? null : info.optJSONObject(documentTypeName));
+	}
+	
+	public static ContentValues getInfo(final String documentTypeName, final JSONObject documentTypeInfo) {
 		final ContentValues resultInfo = new ContentValues();
 		resultInfo.put(SwiftypeDbHelper.COLUMN_DOCUMENT_TYPE, documentTypeName);
 		final int totalCount = (documentTypeInfo == null) ? 0 : documentTypeInfo.optInt(FIELD_TOTAL_COUNT);
@@ -78,7 +87,7 @@ public class ResultParser {
 		return resultInfo;
 	}
 	
-	private ContentValues extractResultFields(final JSONObject result, final String[] fieldNames, final boolean isSuggest) {
+	private static ContentValues extractResultFields(final JSONObject result, final String[] fieldNames, final boolean isSuggest) {
 		final ContentValues fields = new ContentValues();
 		
 		JSONObject highlightedFields = result.optJSONObject(FIELD_HIGHLIGHT);
@@ -0,0 +1,204 @@
+package com.swiftype.android.search.helper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.swiftype.android.search.SwiftypeConfig;
+import com.swiftype.android.search.SwiftypeConfig.DocumentTypeConfig;
+
+/**
+ * Migrates the cache to a changed configuration instead of dropping it.
+ * The tables are compared with the configured document types: tables of new
+ * document types are created, new fields are added as columns, the local
+ * index is rebuilt if its fields changed and the tables of removed document
+ * types are dropped. Rows of document types that didn't change are kept.
+ * Only changes of the configured database_version are migrated, changes of
+ * the table layout itself still rebuild the cache.
+ */
+class SchemaMigration {
+	private static final String LOG_ID = "SchemaMigration";
+	
+	private final SwiftypeDbHelper dbHelper;
+	private final SwiftypeConfig config;
+	private final List<String> statements = new ArrayList<String>();
+	private boolean resultsIncomplete = false;
+	
+	SchemaMigration(final SwiftypeDbHelper dbHelper, final SwiftypeConfig config) {
+		this.dbHelper = dbHelper;
+		this.config = config;
+	}
+	
+	/**
+	 * Runs in the upgrade transaction of the helper
+	 */
+	void migrate(final SQLiteDatabase db) {
+		final long start = SystemClock.elapsedRealtime();
+		final Set<String> tables = getTables(db);
+		final Set<String> documentTypeNames = new HashSet<String>(Arrays.asList(config.getDocumentTypeNames()));
+		
+		for (final String documentTypeName : documentTypeNames) {
+			final DocumentTypeConfig documentTypeConfig = config.getDocumentTypeConfig(documentTypeName);
+			if (!tables.contains(SwiftypeDbHelper.searchTable(documentTypeName))) {
+				statements.addAll(dbHelper.createDocumentTypeTable(documentTypeName));
+				resultsIncomplete = true;
+				continue;
+			}
+			addColumns(db, SwiftypeDbHelper.searchTable(documentTypeName), documentTypeConfig.getSearchFields());
+			addColumns(db, SwiftypeDbHelper.suggestTable(documentTypeName), SwiftypeDbHelper.getSuggestColumns(documentTypeConfig));
+			addColumns(db, SwiftypeDbHelper.localTable(documentTypeName), documentTypeConfig.getSearchFields());
+			migrateLocalIndex(db, documentTypeConfig, tables.contains(SwiftypeDbHelper.localIndexTable(documentTypeName)));
+		}
+		dropRemovedDocumentTypes(tables, documentTypeNames);
+		
+		for (final String statement : statements) {
+			Log.i(LOG_ID, "Migrate: " + statement);
+			db.execSQL(statement);
+		}
+		if (resultsIncomplete) {
+			markStale(db);
+		}
+		Log.i(LOG_ID, "Migrated with " + statements.size() + " statements in " + (SystemClock.elapsedRealtime() - start) + "ms");
+	}
+	
+	/**
+	 * Add the fields the table is missing. Columns of removed fields are
+	 * left, SQLite can't drop them and they do no harm.
+	 */
+	private void addColumns(final SQLiteDatabase db, final String tableName, final String[] fields) {
+		final Set<String> columns = getColumns(db, tableName);
+		for (final String field : fields) {
+			if (!SwiftypeDbHelper.isSharedColumn(field) && !columns.contains(field)) {
+				statements.add("ALTER TABLE " + tableName + " ADD COLUMN " + field + " TEXT");
+				resultsIncomplete = true;
+			}
+		}
+	}
+	
+	/**
+	 * Recreate the full-text index if its fields changed and fill it from
+	 * the documents of the local table
+	 */
+	private void migrateLocalIndex(final SQLiteDatabase db, final DocumentTypeConfig documentTypeConfig, final boolean exists) {
+		final String indexTable = SwiftypeDbHelper.localIndexTable(documentTypeConfig.getName());
+		final String[] fields = SwiftypeDbHelper.getIndexedFields(documentTypeConfig);
+		if (exists && getColumns(db, indexTable).equals(new HashSet<String>(Arrays.asList(fields)))) {
+			return;
+		}
+		if (exists) {
+			statements.add("DROP TABLE " + indexTable);
+		}
+		statements.add(SwiftypeDbHelper.createLocalIndex(documentTypeConfig));
+		final String columns = TextUtils.join(", ", fields);
+		statements.add("INSERT INTO " + indexTable + " (docid, " + columns + ") SELECT " + SwiftypeDbHelper.COLUMN_ID + ", " + columns + " FROM " + SwiftypeDbHelper.localTable(documentTypeConfig.getName()));
+	}
+	
+	/**
+	 * Drop the tables of document types that are no longer configured
+	 */
+	private void dropRemovedDocumentTypes(final Set<String> tables, final Set<String> documentTypeNames) {
+		final Set<String> removed = new HashSet<String>();
+		for (final String table : tables) {
+			final String documentTypeName = documentTypeOf(table);
+			if (documentTypeName != null && !documentTypeNames.contains(documentTypeName)) {
+				removed.add(documentTypeName);
+			}
+		}
+		for (final String documentTypeName : removed) {
+			// the virtual table drops the tables of the full-text index with it
+			for (final String table : new String[] { SwiftypeDbHelper.searchTable(documentTypeName),
+													 SwiftypeDbHelper.suggestTable(documentTypeName),
+													 SwiftypeDbHelper.localTable(documentTypeName),
+													 SwiftypeDbHelper.localIndexTable(documentTypeName) }) {
+				if (tables.contains(table)) {
+					statements.add("DROP TABLE " + table);
+				}
+			}
+		}
+		if (!removed.isEmpty()) {
+			final List<String> quoted = new ArrayList<String>(removed.size());
+			for (final String documentTypeName : removed) {
+				quoted.add("'" + documentTypeName.replace("'", "''") + "'");
+			}
+			statements.add("DELETE FROM " + SwiftypeDbHelper.TABLE_RESULT_STATUS + " WHERE " + SwiftypeDbHelper.COLUMN_DOCUMENT_TYPE + " IN (" + TextUtils.join(", ", quoted) + ")");
+		}
+	}
+	
+	/**
+	 * Cached results lack the new fields or document types, so every query
+	 * is refreshed on its next use without validators. Until then the cached
+	 * rows stay visible.
+	 */
+	private void markStale(final SQLiteDatabase db) {
+		final ContentValues values = new ContentValues();
+		values.put(SwiftypeDbHelper.COLUMN_TIMESTAMP, 0);
+		values.putNull(SwiftypeDbHelper.COLUMN_ETAG);
+		values.putNull(SwiftypeDbHelper.COLUMN_LAST_MODIFIED);
+		values.putNull(SwiftypeDbHelper.COLUMN_BODY_HASH);
+		final int queries = db.update(SwiftypeDbHelper.TABLE_SEARCH_STATUS, values, null, null);
+		Log.i(LOG_ID, "Marked " + queries + " cached queries stale");
+	}
+	
+	/**
+	 * @return	Document type of a result, suggest or local table, null for other tables
+	 */
+	private static String documentTypeOf(final String table) {
+		for (final String prefix : new String[] { SwiftypeDbHelper.searchTable(""),
+												  SwiftypeDbHelper.suggestTable(""),
+												  SwiftypeDbHelper.localTable("") }) {
+			if (table.startsWith(prefix) && table.length() > prefix.length()) {
+				return table.substring(prefix.length());
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * @return	Names of the tables, without the internal tables of full-text indexes
+	 */
+	private static Set<String> getTables(final SQLiteDatabase db) {
+		final Set<String> tables = new HashSet<String>();
+		final Cursor cursor = db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'table'", null);
+		try {
+			while (cursor.moveToNext()) {
+				tables.add(cursor.getString(0));
+			}
+		} finally {
+			cursor.close();
+		}
+		// LocalIndex_<type>_content etc. belong to the virtual table LocalIndex_<type>
+		final Set<String> internal = new HashSet<String>();
+		for (final String table : tables) {
+			for (final String suffix : new String[] { "_content", "_segments", "_segdir" }) {
+				if (table.endsWith(suffix) && tables.contains(table.substring(0, table.length() - suffix.length()))) {
+					internal.add(table);
+				}
+			}
+		}
+		tables.removeAll(internal);
+		return tables;
+	}
+	
+	private static Set<String> getColumns(final SQLiteDatabase db, final String tableName) {
+		final Set<String> columns = new HashSet<String>();
+		final Cursor cursor = db.rawQuery("PRAGMA table_info(" + tableName + ")", null);
+		try {
+			final int nameColumn = cursor.getColumnIndex("name");
+			while (cursor.moveToNext()) {
+				columns.add(cursor.getString(nameColumn));
+			}
+		} finally {
+			cursor.close();
+		}
+		return columns;
+	}
+}
@@ -18,6 +18,8 @@ public class SearchContentProviderHelper {
 	public static final int SEARCH_STATUS_URI_ID = 3;
 	public static final int DOCUMENT_TYPE_RESULT_URI_ID = 4;
 	public static final int RESULT_STATUS_URI_ID = 5;
+	public static final int ANALYTICS_URI_ID = 6;
+	public static final int LOCAL_URI_ID = 7;
 	public static final int DO_NOTHING_URI_ID = 99;
 	
 	private final String authority;
@@ -27,12 +29,18 @@ public class SearchContentProviderHelper {
 	private final String searchStatusPath = "status";
 	private final String documentTypeResultPath = "documentType";
 	private final String resultStatusPath = "results_status";
+	private final String analyticsPath = "analytics";
+	private final String localPath = "local";
+	private final String limitParameter = "limit";
+	private final String notifyParameter = "notify";
 	
 	public final Uri searchUri;
 	public final Uri suggestUri;
 	public final Uri searchStatusUri;
 	public final Uri documentTypeResultUri;
 	public final Uri resultStatusUri;
+	public final Uri analyticsUri;
+	public final Uri localUri;
 	public final Uri searchUpdateUri;
 	
 	private final UriMatcher uriMatcher;
@@ -45,6 +53,8 @@ public class SearchContentProviderHelper {
 		searchStatusUri = Uri.parse("content://" + authority + "/" + searchStatusPath);
 		documentTypeResultUri = Uri.parse("content://" + authority + "/" + documentTypeResultPath);
 		resultStatusUri = Uri.parse("content://" + authority + "/" + resultStatusPath);
+		analyticsUri = Uri.parse("content://" + authority + "/" + analyticsPath);
+		localUri = Uri.parse("content://" + authority + "/" + localPath);
 		
 		uriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
 		uriMatcher.addURI(authority, documentTypeResultPath + "/*/*", DOCUMENT_TYPE_RESULT_URI_ID);
@@ -56,6 +66,8 @@ public class SearchContentProviderHelper {
 		uriMatcher.addURI(authority, suggestPath + "/*", SUGGEST_URI_ID);
 		uriMatcher.addURI(authority, searchStatusPath + "/*", SEARCH_STATUS_URI_ID);
 		uriMatcher.addURI(authority, resultStatusPath + "/*", RESULT_STATUS_URI_ID);
+		uriMatcher.addURI(authority, analyticsPath, ANALYTICS_URI_ID);
+		uriMatcher.addURI(authority, localPath + "/*/*", LOCAL_URI_ID);
 		
 		searchUpdateUri = searchUri("");
 	}	
@@ -90,6 +102,16 @@ public class SearchContentProviderHelper {
 		return documentTypeResultUri.buildUpon().appendPath(documentTypeName).appendPath(queryHash).build();
 	}
 	
+	/**
+	 * Generate Uri to search the documents on the device, e.g. while offline
+	 * @param documentTypeName	Document type name
+	 * @param query				Search query
+	 * @return
+	 */
+	public Uri localUri(final String documentTypeName, final String query) {
+		return localUri.buildUpon().appendPath(documentTypeName).appendPath(query).build();
+	}
+	
 	/**
 	 * Generate Uri to get suggestions for a specific query hash
 	 * @param queryHash
@@ -119,6 +141,39 @@ public class SearchContentProviderHelper {
 		return buildUri(resultStatusUri, query);
 	}
 	
+	/**
+	 * Uri of the queued analytics events
+	 * @param limit		Maximum number of events returned by a query
+	 * @return
+	 */
+	public Uri analyticsUri(final int limit) {
+		return analyticsUri.buildUpon().appendQueryParameter(limitParameter, Integer.toString(limit)).build();
+	}
+	
+	/**
+	 * @return	Limit of the query or null for all rows
+	 */
+	public String extractLimit(final Uri uri) {
+		return uri.getQueryParameter(limitParameter);
+	}
+	
+	/**
+	 * Uri for a bulk insert that doesn't notify observers, because the
+	 * caller notifies them once all related tables are updated
+	 * @param uri		Uri of the inserted rows
+	 * @return
+	 */
+	public Uri withoutNotification(final Uri uri) {
+		return uri.buildUpon().appendQueryParameter(notifyParameter, "false").build();
+	}
+	
+	/**
+	 * @return	False if observers of the uri should not be notified of changes
+	 */
+	public boolean shouldNotify(final Uri uri) {
+		return !"false".equals(uri.getQueryParameter(notifyParameter));
+	}
+	
 	private Uri buildUri(final Uri uri, final String path) {
 		return uri.buildUpon().appendPath(path).build();
 	}
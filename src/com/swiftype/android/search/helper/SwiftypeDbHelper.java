@@ -2,12 +2,18 @@ package com.swiftype.android.search.helper;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
+import android.annotation.TargetApi;
 import android.app.SearchManager;
 import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+import android.os.SystemClock;
+import android.text.TextUtils;
 import android.util.Log;
 
 import com.swiftype.android.search.R;
@@ -15,11 +21,19 @@ import com.swiftype.android.search.SwiftypeConfig;
 import com.swiftype.android.search.SwiftypeConfig.DocumentTypeConfig;
 
 public class SwiftypeDbHelper extends SQLiteOpenHelper {
+	/**
+	 * Version of the table layout defined here, combined with the configured
+	 * database version. Must be incremented on any schema changes in this class.
+	 */
+	private static final int SCHEMA_VERSION = 6;
 	private static final String DATABASE_NAME = "Swiftype.db";
 	private static final String TABLE_SEARCH = "Search";
 	private static final String TABLE_SUGGEST = "Suggest";
+	private static final String TABLE_LOCAL = "Local";
+	private static final String TABLE_LOCAL_INDEX = "LocalIndex";
 	public static final String TABLE_SEARCH_STATUS = "SearchStatus";
 	public static final String TABLE_RESULT_STATUS = "ResultStatus";
+	public static final String TABLE_ANALYTICS_QUEUE = "AnalyticsQueue";
 	public static final String COLUMN_ID = "_id";
 	public static final String COLUMN_QUERY = "_query";
 	public static final String COLUMN_QUERY_HASH = "_query_hash";
@@ -31,9 +45,17 @@ public class SwiftypeDbHelper extends SQLiteOpenHelper {
 	public static final String COLUMN_PREFIX = "prefix";
 	public static final String COLUMN_SEARCH_TYPE = "search_type";
 	public static final String COLUMN_EXTERNAL_ID = "external_id";
+	public static final String COLUMN_ETAG = "etag";
+	public static final String COLUMN_LAST_MODIFIED = "last_modified";
+	public static final String COLUMN_BODY_HASH = "body_hash";
+	public static final String COLUMN_PATH = "path";
+	public static final String COLUMN_ATTEMPTS = "attempts";
+	public static final String COLUMN_GENERATION = "_generation";
+	public static final String COLUMN_LAST_ACCESS = "last_access";
+	public static final String COLUMN_LOCAL = "_local";
 	
 	private static final List<String> SHARED_COLUMNS = Arrays.asList(new String[] {COLUMN_ID, COLUMN_QUERY_HASH, COLUMN_DOCUMENT_ID});
-	private static final String COMMON_COLUMNS_STATEMENT = " ( " + COLUMN_ID + " INTEGER PRIMARY KEY, " + COLUMN_DOCUMENT_ID + " TEXT, " + COLUMN_QUERY_HASH + " TEXT, " + COLUMN_TIMESTAMP + " INTEGER, ";
+	private static final String COMMON_COLUMNS_STATEMENT = " ( " + COLUMN_ID + " INTEGER PRIMARY KEY, " + COLUMN_DOCUMENT_ID + " TEXT, " + COLUMN_QUERY_HASH + " TEXT, " + COLUMN_TIMESTAMP + " INTEGER, " + COLUMN_GENERATION + " INTEGER, ";
 	
 	private final List<String> createTableStatements;
 	private final List<String> deleteTableStatements;
@@ -42,22 +64,29 @@ public class SwiftypeDbHelper extends SQLiteOpenHelper {
 	
 	public SwiftypeDbHelper(final Context context) {
 		super(context, DATABASE_NAME, null, getDatabaseVersion(context));
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+			enableWriteAheadLogging();
+		}
+		
+		final String searchStatusStatement = "CREATE TABLE IF NOT EXISTS " + TABLE_SEARCH_STATUS + " ( " + COLUMN_QUERY_HASH + " TEXT, " + COLUMN_SEARCH_TYPE + " INTEGER, " + COLUMN_TIMESTAMP + " INTEGER, " + COLUMN_ETAG + " TEXT, " + COLUMN_LAST_MODIFIED + " TEXT, " + COLUMN_BODY_HASH + " TEXT, " + COLUMN_GENERATION + " INTEGER, " + COLUMN_LAST_ACCESS + " INTEGER, PRIMARY KEY(" + COLUMN_QUERY_HASH + ", " + COLUMN_SEARCH_TYPE + ") )";
+		final String resultStatusStatement = "CREATE TABLE IF NOT EXISTS " + TABLE_RESULT_STATUS + " ( " + COLUMN_QUERY_HASH + " TEXT, " + COLUMN_QUERY + " TEXT, " + COLUMN_TIMESTAMP + " INTEGER, " + COLUMN_DOCUMENT_TYPE + " TEXT, " + COLUMN_TOTAL_COUNT + " INTEGER, " + COLUMN_GENERATION + " INTEGER, PRIMARY KEY( " + COLUMN_QUERY + " ) )";
 		
-		final String searchStatusStatement = "CREATE TABLE IF NOT EXISTS " + TABLE_SEARCH_STATUS + " ( " + COLUMN_QUERY_HASH + " TEXT, " + COLUMN_SEARCH_TYPE + " INTEGER, " + COLUMN_TIMESTAMP + " INTEGER, PRIMARY KEY(" + COLUMN_QUERY_HASH + ") )";
-		final String resultStatusStatement = "CREATE TABLE IF NOT EXISTS " + TABLE_RESULT_STATUS + " ( " + COLUMN_QUERY_HASH + " TEXT, " + COLUMN_QUERY + " TEXT, " + COLUMN_TIMESTAMP + " INTEGER, " + COLUMN_DOCUMENT_TYPE + " TEXT, " + COLUMN_TOTAL_COUNT + " INTEGER, PRIMARY KEY( " + COLUMN_QUERY + " ) )";
+		final String analyticsQueueStatement = "CREATE TABLE IF NOT EXISTS " + TABLE_ANALYTICS_QUEUE + " ( " + COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " + COLUMN_PATH + " TEXT, " + COLUMN_TIMESTAMP + " INTEGER, " + COLUMN_ATTEMPTS + " INTEGER DEFAULT 0 )";
 		
 		config = new SwiftypeConfig(context.getResources());
 		
 		final String[] names = config.getDocumentTypeNames();
 		final String[] extraStatements = {searchStatusStatement, resultStatusStatement};
 		final String[] extraTables = {TABLE_SEARCH_STATUS, TABLE_RESULT_STATUS};
-		int statementCount = names.length * 2 + extraStatements.length;
+		int statementCount = names.length * 4 + extraStatements.length;
 		createTableStatements = new ArrayList<String>(statementCount);
 		deleteTableStatements = new ArrayList<String>(statementCount);
 		for (final String name : names) {
 			createTableStatements.addAll(createDocumentTypeTable(name));
 			deleteTableStatements.add(deleteStatement(searchTable(name)));
 			deleteTableStatements.add(deleteStatement(suggestTable(name)));
+			deleteTableStatements.add(deleteStatement(localTable(name)));
+			deleteTableStatements.add(deleteStatement(localIndexTable(name)));
 		}
 		for (final String statement : extraStatements) {
 			createTableStatements.add(statement);
@@ -66,14 +95,43 @@ public class SwiftypeDbHelper extends SQLiteOpenHelper {
 			createTableStatements.add(createIndex(table, COLUMN_QUERY_HASH));
 			deleteTableStatements.add(deleteStatement(table));
 		}
+		createTableStatements.add(analyticsQueueStatement);
+		deleteTableStatements.add(deleteStatement(TABLE_ANALYTICS_QUEUE));
 	}
 	
 	private static int getDatabaseVersion(final Context context) {
-		return context.getResources().getInteger(R.integer.database_version);
+		return SCHEMA_VERSION * 1000 + context.getResources().getInteger(R.integer.database_version);
 	}
 	
+	/**
+	 * Write-ahead logging lets readers use their own connections while a
+	 * writer is in a transaction, so cursors of the UI don't wait for
+	 * results being stored. It is available since Honeycomb.
+	 */
+	public static boolean supportsWriteAheadLogging() {
+		return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+	}
+	
+	/**
+	 * Begin a write transaction that doesn't lock out readers where the
+	 * platform allows it
+	 */
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	public static void beginWriteTransaction(final SQLiteDatabase db) {
+		if (supportsWriteAheadLogging()) {
+			db.beginTransactionNonExclusive();
+		} else {
+			db.beginTransaction();
+		}
+	}
+	
+	/**
+	 * Open the writable database first, so the tables are created or upgraded
+	 * before the first read. Synchronized, because the provider is called
+	 * from several binder threads.
+	 */
 	@Override
-	public SQLiteDatabase getReadableDatabase() {
+	public synchronized SQLiteDatabase getReadableDatabase() {
 		if (!touchedDatabase) {
 			getWritableDatabase();
 			touchedDatabase = true;
@@ -82,12 +140,31 @@ public class SwiftypeDbHelper extends SQLiteOpenHelper {
 	}
 	
 	@Override
-	public void onCreate(SQLiteDatabase db) {
-		// TODO: just drop if necessary? create different tables for different schemas? add columns if necessary?
-		Log.i("SwiftypeDbHelper", "Drop and create search and suggest tables");
-		for (String statement : deleteTableStatements) {
-			db.execSQL(statement);
+	public synchronized SQLiteDatabase getWritableDatabase() {
+		return super.getWritableDatabase();
+	}
+	
+	@Override
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	public void onOpen(SQLiteDatabase db) {
+		super.onOpen(db);
+		// Jelly Bean and later enable it for the helper before the database is opened
+		if (supportsWriteAheadLogging() && Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN && !db.isReadOnly()) {
+			final long start = SystemClock.elapsedRealtime();
+			final boolean enabled = db.enableWriteAheadLogging();
+			Log.i("SwiftypeDbHelper", "Write-ahead logging " + (enabled ? "enabled" : "unavailable") + " in " + (SystemClock.elapsedRealtime() - start) + "ms");
 		}
+	}
+	
+	@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+	private void enableWriteAheadLogging() {
+		setWriteAheadLoggingEnabled(true);
+		Log.i("SwiftypeDbHelper", "Write-ahead logging enabled");
+	}
+	
+	@Override
+	public void onCreate(SQLiteDatabase db) {
+		Log.i("SwiftypeDbHelper", "Create search and suggest tables");
 		for (String statement : createTableStatements) {
 			Log.i("SwiftypeDbHelper", "Create: " + statement);
 			db.execSQL(statement);
@@ -96,6 +173,11 @@ public class SwiftypeDbHelper extends SQLiteOpenHelper {
 	
 	@Override
 	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+		if (oldVersion / 1000 == SCHEMA_VERSION) {
+			// only the configuration changed, the cache is migrated to it
+			new SchemaMigration(this, config).migrate(db);
+			return;
+		}
 		// Databases are only used for caching
 		destroyDatabases(db);
 		onCreate(db);
@@ -114,13 +196,27 @@ public class SwiftypeDbHelper extends SQLiteOpenHelper {
 		return TABLE_SUGGEST + "_" + documentTypeName;
 	}
 	
+	/**
+	 * Table with the search fields of every cached document, one row per document
+	 */
+	public static String localTable(final String documentTypeName) {
+		return TABLE_LOCAL + "_" + documentTypeName;
+	}
+	
+	/**
+	 * Full-text index of the display fields of the local table, its docid is the _id there
+	 */
+	public static String localIndexTable(final String documentTypeName) {
+		return TABLE_LOCAL_INDEX + "_" + documentTypeName;
+	}
+	
 	private void destroyDatabases(SQLiteDatabase db) {
 		for (String statement : deleteTableStatements) {
 			db.execSQL(statement);
 		}
 	}
 	
-	private List<String> createDocumentTypeTable(final String documentTypeName) {
+	List<String> createDocumentTypeTable(final String documentTypeName) {
 		final DocumentTypeConfig documentTypeConfig = config.getDocumentTypeConfig(documentTypeName);
 		final List<String> statements = new ArrayList<String>(2);
 		
@@ -129,20 +225,62 @@ public class SwiftypeDbHelper extends SQLiteOpenHelper {
 		statements.add(createIndex(searchTable, COLUMN_QUERY_HASH));
 		
 		final String suggestTable = suggestTable(documentTypeName);
-		final String[] columns = concat(documentTypeConfig.getSuggestFields(),
-										SearchManager.SUGGEST_COLUMN_INTENT_DATA,
-										SearchManager.SUGGEST_COLUMN_INTENT_EXTRA_DATA); 
-		statements.add(createTable(suggestTable, columns));
+		statements.add(createTable(suggestTable, getSuggestColumns(documentTypeConfig)));
 		statements.add(createIndex(suggestTable, COLUMN_QUERY_HASH));
 		
+		final String localTable = localTable(documentTypeName);
+		final StringBuilder sb = new StringBuilder();
+		sb.append("CREATE TABLE IF NOT EXISTS ").append(localTable);
+		sb.append(" ( " + COLUMN_ID + " INTEGER PRIMARY KEY, " + COLUMN_DOCUMENT_ID + " TEXT, " + COLUMN_TIMESTAMP + " INTEGER");
+		for (final String column : documentTypeConfig.getSearchFields()) {
+			if (!isSharedColumn(column)) {
+				sb.append(", ").append(column).append(" TEXT");
+			}
+		}
+		statements.add(sb.append(" )").toString());
+		statements.add(createIndex(localTable, COLUMN_TIMESTAMP));
+		statements.add(createLocalIndex(documentTypeConfig));
+		
 		return statements;
 	}
 	
+	/**
+	 * Virtual tables only know IF NOT EXISTS on newer SQLite versions, so
+	 * this must only run where the index doesn't exist
+	 */
+	static String createLocalIndex(final DocumentTypeConfig documentTypeConfig) {
+		return "CREATE VIRTUAL TABLE " + localIndexTable(documentTypeConfig.getName()) + " USING fts3(" + TextUtils.join(", ", getIndexedFields(documentTypeConfig)) + ")";
+	}
+	
+	/**
+	 * @return	Columns of the suggest table besides the ones every result table has
+	 */
+	static String[] getSuggestColumns(final DocumentTypeConfig documentTypeConfig) {
+		return concat(documentTypeConfig.getSuggestFields(),
+					  SearchManager.SUGGEST_COLUMN_INTENT_DATA,
+					  SearchManager.SUGGEST_COLUMN_INTENT_EXTRA_DATA);
+	}
+	
+	/**
+	 * @return	True for the columns created with every result table
+	 */
+	static boolean isSharedColumn(final String column) {
+		return SHARED_COLUMNS.contains(column);
+	}
+	
+	/**
+	 * @return	Fields of the document type in the full-text index
+	 */
+	public static String[] getIndexedFields(final DocumentTypeConfig documentTypeConfig) {
+		final Set<String> fields = new LinkedHashSet<String>(Arrays.asList(documentTypeConfig.getDisplayFields()));
+		return fields.toArray(new String[fields.size()]);
+	}
+	
 	private String createIndex(final String tableName, final String column) {
 		return "CREATE INDEX IF NOT EXISTS " + tableName + column + "_idx ON " + tableName + " ( " + column + " )";
 	}
 	
-	private String[] concat(final String[] array, final String ... columns) {
+	private static String[] concat(final String[] array, final String ... columns) {
 		final int oldLength = array.length;
 		final int newColumnsLength = columns.length;
 		final String[] newArray = copyOf(array, oldLength + newColumnsLength);
@@ -152,7 +290,7 @@ public class SwiftypeDbHelper extends SQLiteOpenHelper {
 		return newArray;
 	}
 	
-	private String[] copyOf(final String[] array, final int newSize) {
+	private static String[] copyOf(final String[] array, final int newSize) {
 		final String[] newArray = new String[newSize];
 		for (int i = 0; i < array.length && i < newSize; ++i) {
 			newArray[i] = array[i];
@@ -146,8 +146,13 @@ public class ResultListFragment extends ListFragment implements LoaderManager.Lo
 	private void updateSearchUri() {
 		final String documentTypeName = getArguments().getString(PARAM_DOCUMENT_TYPE_NAME);
 		query = searcher.getQuery();
-		final String queryHash = helper.queryHash(query, searchService.getConfig().getQueryOptions().toString());
-		uri = helper.documentTypeUri(documentTypeName, queryHash);
+		if (SearchServiceHelper.isConnected(getActivity())) {
+			final String queryHash = helper.queryHash(query, searchService.getConfig().getQueryOptions().toString());
+			uri = helper.documentTypeUri(documentTypeName, queryHash);
+		} else {
+			// offline the documents on the device are searched instead
+			uri = helper.localUri(documentTypeName, query);
+		}
 	}
 	
 	public String getTitle() {
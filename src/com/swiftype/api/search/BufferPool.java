@@ -0,0 +1,82 @@
+package com.swiftype.api.search;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reusable byte and char buffers for reading responses, so a response
+ * doesn't allocate its decoding buffers anew. Only a few buffers are kept,
+ * about as many as requests run in parallel.
+ */
+public class BufferPool {
+	public static final int BUFFER_SIZE = 8 * 1024;
+	public static final int DEFAULT_MAX_POOLED = 4;
+	
+	private static BufferPool defaultPool;
+	
+	private final int maxPooled;
+	private final List<byte[]> byteBuffers = new ArrayList<byte[]>();
+	private final List<char[]> charBuffers = new ArrayList<char[]>();
+	private long acquired = 0;
+	private long allocated = 0;
+	
+	public BufferPool(final int maxPooled) {
+		this.maxPooled = maxPooled;
+	}
+	
+	public static synchronized BufferPool getDefault() {
+		if (defaultPool == null) {
+			defaultPool = new BufferPool(DEFAULT_MAX_POOLED);
+		}
+		return defaultPool;
+	}
+	
+	public synchronized byte[] acquireBytes() {
+		++acquired;
+		if (byteBuffers.isEmpty()) {
+			++allocated;
+			return new byte[BUFFER_SIZE];
+		}
+		return byteBuffers.remove(byteBuffers.size() - 1);
+	}
+	
+	public synchronized void release(final byte[] buffer) {
+		if (buffer.length == BUFFER_SIZE && byteBuffers.size() < maxPooled) {
+			byteBuffers.add(buffer);
+		}
+	}
+	
+	public synchronized char[] acquireChars() {
+		++acquired;
+		if (charBuffers.isEmpty()) {
+			++allocated;
+			return new char[BUFFER_SIZE];
+		}
+		return charBuffers.remove(charBuffers.size() - 1);
+	}
+	
+	public synchronized void release(final char[] buffer) {
+		if (buffer.length == BUFFER_SIZE && charBuffers.size() < maxPooled) {
+			charBuffers.add(buffer);
+		}
+	}
+	
+	/**
+	 * @return	Number of buffers handed out
+	 */
+	public synchronized long getAcquiredCount() {
+		return acquired;
+	}
+	
+	/**
+	 * @return	Number of buffers that had to be allocated because none was pooled
+	 */
+	public synchronized long getAllocatedCount() {
+		return allocated;
+	}
+	
+	@Override
+	public synchronized String toString() {
+		return "acquired: " + acquired + ", allocated: " + allocated + ", pooled: " + (byteBuffers.size() + charBuffers.size());
+	}
+}
@@ -0,0 +1,113 @@
+package com.swiftype.api.search;
+
+import android.os.SystemClock;
+
+/**
+ * Stops sending requests to an endpoint that keeps failing. After a number
+ * of consecutive failures the breaker opens and rejects requests right away.
+ * Once the open period passed, a single trial request is let through: if it
+ * succeeds the breaker closes, otherwise it opens again.
+ */
+public class CircuitBreaker {
+	public static final int CLOSED = 0;
+	public static final int OPEN = 1;
+	public static final int HALF_OPEN = 2;
+	
+	public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+	public static final long DEFAULT_OPEN_TIME = 30 * 1000;
+	
+	private final String endpoint;
+	private final int failureThreshold;
+	private final long openTime;
+	private int state = CLOSED;
+	private int consecutiveFailures = 0;
+	private long openedAt = 0;
+	private long openedCount = 0;
+	private long rejectedCount = 0;
+	
+	public CircuitBreaker(final String endpoint) {
+		this(endpoint, DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_TIME);
+	}
+	
+	/**
+	 * @param failureThreshold	Consecutive failures that open the breaker
+	 * @param openTime			Milliseconds requests are rejected before a trial request is sent
+	 */
+	public CircuitBreaker(final String endpoint, final int failureThreshold, final long openTime) {
+		this.endpoint = endpoint;
+		this.failureThreshold = failureThreshold;
+		this.openTime = openTime;
+	}
+	
+	/**
+	 * @return	False if the request must not be sent
+	 */
+	public synchronized boolean allowRequest() {
+		if (state == OPEN && SystemClock.elapsedRealtime() - openedAt >= openTime) {
+			state = HALF_OPEN;
+			return true;
+		}
+		if (state != CLOSED) {
+			// open, or the trial request is still running
+			++rejectedCount;
+			return false;
+		}
+		return true;
+	}
+	
+	public synchronized void recordSuccess() {
+		consecutiveFailures = 0;
+		state = CLOSED;
+	}
+	
+	/**
+	 * The request was aborted by the caller, so nothing is known about the endpoint
+	 */
+	public synchronized void recordAborted() {
+		if (state == HALF_OPEN) {
+			// let the next request be the trial request
+			state = OPEN;
+			openedAt = SystemClock.elapsedRealtime() - openTime;
+		}
+	}
+	
+	public synchronized void recordFailure() {
+		++consecutiveFailures;
+		if (state == HALF_OPEN || (state == CLOSED && consecutiveFailures >= failureThreshold)) {
+			state = OPEN;
+			openedAt = SystemClock.elapsedRealtime();
+			++openedCount;
+		}
+	}
+	
+	public String getEndpoint() {
+		return endpoint;
+	}
+	
+	/**
+	 * @return	One of CLOSED, OPEN or HALF_OPEN
+	 */
+	public synchronized int getState() {
+		return state;
+	}
+	
+	/**
+	 * @return	Number of times the breaker opened
+	 */
+	public synchronized long getOpenedCount() {
+		return openedCount;
+	}
+	
+	/**
+	 * @return	Number of requests rejected while the breaker was open
+	 */
+	public synchronized long getRejectedCount() {
+		return rejectedCount;
+	}
+	
+	@Override
+	public synchronized String toString() {
+		final String[] names = { "closed", "open", "half open" };
+		return endpoint + ": " + names[state] + " (failures: " + consecutiveFailures + ", opened: " + openedCount + ", rejected: " + rejectedCount + ")";
+	}
+}
@@ -1,9 +1,15 @@
 package com.swiftype.api.search;
 
+import java.io.IOException;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
-import org.apache.http.client.methods.HttpUriRequest;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -12,6 +18,13 @@ import android.util.Log;
 public class Engine {
 	private static final String LOG_ID = Engine.class.getSimpleName();
 	
+	/**
+	 * Outcomes of {@link #deliverAnalytics(String)}
+	 */
+	public static final int ANALYTICS_SENT = 0;
+	public static final int ANALYTICS_RETRY = 1;
+	public static final int ANALYTICS_REJECTED = 2;
+	
 	private static final String SUGGEST_PATH = "engines/suggest.json";
 	private static final String SEARCH_PATH = "engines/search.json";
 	private static final String AUTOSELECT_PATH = "analytics/pas.json";
@@ -21,68 +34,327 @@ public class Engine {
 	private final String engineKey;
 	private final RestConnection apiConnection;
 	private final SwiftypeQueryOptions defaultOptions;
+	private final RequestExecutor executor;
+	private final LatencyHistogram searchLatencies = new LatencyHistogram();
+	private final LatencyHistogram suggestLatencies = new LatencyHistogram();
+	private final LatencyHistogram prefetchLatencies = new LatencyHistogram();
+	private final AtomicLong hedgesSent = new AtomicLong();
+	private final AtomicLong hedgesWon = new AtomicLong();
+	private final AtomicLong deadlinesExceeded = new AtomicLong();
+	private final AtomicLong speculationsSkipped = new AtomicLong();
+	private volatile NetworkPolicy networkPolicy = NetworkPolicy.DEFAULT;
 	
-	private volatile HttpUriRequest currentSearchRequest;
-	private volatile HttpUriRequest currentSuggestRequest;
+	private final AtomicReference<RequestHandle> currentSearch = new AtomicReference<RequestHandle>();
+	private final AtomicReference<RequestHandle> currentSuggest = new AtomicReference<RequestHandle>();
+	private final AtomicReference<RequestHandle> currentPrefetch = new AtomicReference<RequestHandle>();
 	
 	public Engine(final String engineKey) {
 		this(engineKey, SwiftypeQueryOptions.DEFAULT);
 	}
 	
 	public Engine(final String engineKey, final SwiftypeQueryOptions defaultOptions) {
+		this(engineKey, defaultOptions, RequestExecutor.getDefault());
+	}
+	
+	public Engine(final String engineKey, final SwiftypeQueryOptions defaultOptions, final RequestExecutor executor) {
+		this(engineKey, defaultOptions, executor, new RestConnection());
+	}
+	
+	/**
+	 * @param apiConnection		Connection with a custom {@link Transport}, e.g. a {@link LoopbackTransport} for benchmarks
+	 */
+	public Engine(final String engineKey, final SwiftypeQueryOptions defaultOptions, final RequestExecutor executor, final RestConnection apiConnection) {
 		this.engineKey = engineKey;
-		this.apiConnection = new RestConnection();
+		this.apiConnection = apiConnection;
 		this.defaultOptions = defaultOptions;
+		this.executor = executor;
+	}
+	
+	public RequestExecutor getExecutor() {
+		return executor;
+	}
+	
+	/**
+	 * @return	Connection of the engine, e.g. for the latencies of each {@link QosClass}
+	 */
+	public RestConnection getApiConnection() {
+		return apiConnection;
+	}
+	
+	public NetworkPolicy getNetworkPolicy() {
+		return networkPolicy;
+	}
+	
+	/**
+	 * @param networkPolicy	Adapts searches to the link quality, {@link NetworkPolicy#NONE} to always send them as they are
+	 */
+	public void setNetworkPolicy(final NetworkPolicy networkPolicy) {
+		this.networkPolicy = networkPolicy;
+	}
+	
+	/**
+	 * @return	False if speculative requests should not be sent on the current link
+	 */
+	public boolean allowSpeculation() {
+		return networkPolicy.allowSpeculation(apiConnection.getNetworkQuality().getQuality());
+	}
+	
+	/**
+	 * @return	Number of prefetches and hedged requests skipped because of a slow link
+	 */
+	public long getSpeculationsSkippedCount() {
+		return speculationsSkipped.get();
+	}
+	
+	/**
+	 * @return	Time until the response headers of recent searches arrived
+	 */
+	public LatencyHistogram getSearchLatencies() {
+		return searchLatencies;
+	}
+	
+	/**
+	 * @return	Time until the response headers of recent suggests arrived
+	 */
+	public LatencyHistogram getSuggestLatencies() {
+		return suggestLatencies;
+	}
+	
+	/**
+	 * @return	Time until the response headers of recent prefetches arrived,
+	 * kept apart so prefetches don't skew the hedging of searches
+	 */
+	public LatencyHistogram getPrefetchLatencies() {
+		return prefetchLatencies;
+	}
+	
+	/**
+	 * @return	Number of duplicate requests sent for slow requests
+	 */
+	public long getHedgesSentCount() {
+		return hedgesSent.get();
+	}
+	
+	/**
+	 * @return	Number of duplicate requests answered before the original request
+	 */
+	public long getHedgesWonCount() {
+		return hedgesWon.get();
+	}
+	
+	/**
+	 * @return	Number of requests aborted because their latency budget ran out
+	 */
+	public long getDeadlinesExceededCount() {
+		return deadlinesExceeded.get();
+	}
+	
+	public RequestHandle search(final OnApiAnswerHandler handler, final String query) {
+		return search(handler, query, defaultOptions);
+	}
+	
+	public RequestHandle search(final OnApiAnswerHandler handler, final String query, final SwiftypeQueryOptions options) {
+		return makeSearch(handler, SEARCH_PATH, query, options, currentSearch);
+	}
+	
+	/**
+	 * Search and stream the results to the handler one record at a time,
+	 * without holding the complete response in memory.
+	 */
+	public RequestHandle search(final OnApiStreamHandler handler, final String query, final SwiftypeQueryOptions options) {
+		return search(handler, query, options, null);
+	}
+	
+	/**
+	 * Streaming search that is only answered with results if they changed
+	 * since the cached response described by the validator.
+	 */
+	public RequestHandle search(final OnApiStreamHandler handler, final String query, final SwiftypeQueryOptions options, final ResponseValidator validator) {
+		return search(handler, query, options, validator, LatencyBudget.NONE);
 	}
 	
-	public void search(final OnApiAnswerHandler handler, final String query) {
-		search(handler, query, defaultOptions);
+	/**
+	 * Streaming search that is aborted once the budget runs out and may be
+	 * hedged with a duplicate request if it is slower than usual.
+	 */
+	public RequestHandle search(final OnApiStreamHandler handler, final String query, final SwiftypeQueryOptions options, final ResponseValidator validator, final LatencyBudget budget) {
+		return makeSearch(handler, SEARCH_PATH, query, options, validator, budget, currentSearch);
 	}
 	
-	public void search(final OnApiAnswerHandler handler, final String query, final SwiftypeQueryOptions options) {
-		currentSearchRequest = makeSearch(handler, SEARCH_PATH, query, options, currentSearchRequest);
+	public RequestHandle suggest(final OnApiAnswerHandler handler, final String query) {
+		return suggest(handler, query, defaultOptions);
 	}
 	
-	public void suggest(final OnApiAnswerHandler handler, final String query) {
-		suggest(handler, query, defaultOptions);
+	public RequestHandle suggest(final OnApiAnswerHandler handler, final String query, final SwiftypeQueryOptions options) {
+		return makeSearch(handler, SUGGEST_PATH, query, options, currentSuggest);
 	}
 	
-	public void suggest(final OnApiAnswerHandler handler, final String query, final SwiftypeQueryOptions options) {
-		currentSuggestRequest = makeSearch(handler, SUGGEST_PATH, query, options, currentSuggestRequest);
+	/**
+	 * Suggest and stream the results to the handler one record at a time,
+	 * without holding the complete response in memory.
+	 */
+	public RequestHandle suggest(final OnApiStreamHandler handler, final String query, final SwiftypeQueryOptions options) {
+		return suggest(handler, query, options, null);
+	}
+	
+	/**
+	 * Streaming suggest that is only answered with results if they changed
+	 * since the cached response described by the validator.
+	 */
+	public RequestHandle suggest(final OnApiStreamHandler handler, final String query, final SwiftypeQueryOptions options, final ResponseValidator validator) {
+		return suggest(handler, query, options, validator, LatencyBudget.NONE);
+	}
+	
+	/**
+	 * Streaming suggest that is aborted once the budget runs out and may be
+	 * hedged with a duplicate request if it is slower than usual.
+	 */
+	public RequestHandle suggest(final OnApiStreamHandler handler, final String query, final SwiftypeQueryOptions options, final ResponseValidator validator, final LatencyBudget budget) {
+		return makeSearch(handler, SUGGEST_PATH, query, options, validator, budget, currentSuggest);
+	}
+	
+	/**
+	 * Speculatively search on the prefetch lane with its own connections.
+	 * Prefetches don't replace the current search, but a new prefetch aborts
+	 * the previous one.
+	 */
+	public RequestHandle prefetch(final OnApiStreamHandler handler, final String query, final SwiftypeQueryOptions options, final ResponseValidator validator) {
+		if (!allowSpeculation()) {
+			speculationsSkipped.incrementAndGet();
+			Log.i(LOG_ID, "Skip prefetch on " + apiConnection.getNetworkQuality());
+			return RequestHandle.failed(null);
+		}
+		final RequestHandle handle = startRequest(SEARCH_PATH, query, options, validator, QosClass.PREFETCH, currentPrefetch);
+		if (!handle.isDone()) {
+			executor.executePrefetch(new StreamingSearchRequest(handle, handler, prefetchLatencies, LatencyBudget.NONE));
+		}
+		return handle;
+	}
+	
+	public void cancelPrefetch() {
+		final RequestHandle handle = currentPrefetch.getAndSet(null);
+		if (handle != null && handle.cancel()) {
+			Log.i(LOG_ID, "Cancel prefetch: " + handle.getUrl());
+		}
 	}
 	
 	public void logAutoselect(final String externalId, final String prefix) {
-		updateAnalytics(AUTOSELECT_PATH, engineKey, externalId, prefix, "prefix");
+		updateAnalytics(autoselectPath(externalId, prefix));
 	}
 	
 	public void logClickthrough(final String externalId, final String query) {
-		updateAnalytics(CLICKTHROUGH_PATH, engineKey, externalId, query, "q");
+		updateAnalytics(clickthroughPath(externalId, query));
 	}
 	
-	private void updateAnalytics(final String path, final String engineKey, final String externalId, final String query, final String queryParameterName) {
+	/**
+	 * @return	Request path of an autoselect event, to be sent later with {@link #sendAnalytics(String)}
+	 */
+	public String autoselectPath(final String externalId, final String prefix) {
+		return analyticsPath(AUTOSELECT_PATH, engineKey, externalId, prefix, "prefix");
+	}
+	
+	/**
+	 * @return	Request path of a clickthrough event, to be sent later with {@link #sendAnalytics(String)}
+	 */
+	public String clickthroughPath(final String externalId, final String query) {
+		return analyticsPath(CLICKTHROUGH_PATH, engineKey, externalId, query, "q");
+	}
+	
+	/**
+	 * Send an analytics event on the calling thread. Events sent one after
+	 * another reuse the same keep-alive connection.
+	 * 
+	 * @return	False if the event could not be delivered
+	 */
+	public boolean sendAnalytics(final String requestPath) {
+		return deliverAnalytics(requestPath) == ANALYTICS_SENT;
+	}
+	
+	/**
+	 * Send an analytics event on the calling thread and tell why it wasn't
+	 * delivered: sending it again may succeed if the device was offline or
+	 * the server failed, but never if the server rejected the event itself.
+	 * 
+	 * @return	One of ANALYTICS_SENT, ANALYTICS_RETRY or ANALYTICS_REJECTED
+	 */
+	public int deliverAnalytics(final String requestPath) {
+		TransportResponse response = null;
 		try {
-			final String requestPath = path + "?engine_key=" + engineKey + "&doc_id=" + externalId + "&" + queryParameterName + "=" + URLEncoder.encode(query, "UTF-8");
+			response = apiConnection.open(apiConnection.get(requestPath).setQosClass(QosClass.BACKGROUND));
+			final int statusCode = response.getStatusCode();
+			if (statusCode < 300) {
+				return ANALYTICS_SENT;
+			}
+			Log.i(LOG_ID, "Status " + statusCode + " for analytics event: " + requestPath);
+			return apiConnection.getRetryPolicy().isRetryable(statusCode) ? ANALYTICS_RETRY : ANALYTICS_REJECTED;
+		} catch (IOException e) {
+			Log.i(LOG_ID, "Analytics event not sent: " + e.getMessage());
+			return ANALYTICS_RETRY;
+		} finally {
+			if (response != null) {
+				response.close();
+			}
+		}
+	}
+	
+	private void updateAnalytics(final String requestPath) {
+		if (requestPath != null) {
 			Log.i(LOG_ID, "Update Analytics: " + requestPath);
-			Thread analyticsUpdater = new Thread(new AnalyticsUpdater(requestPath));
-			analyticsUpdater.start();
+			executor.executeBackground(new AnalyticsUpdater(requestPath));
+		}
+	}
+	
+	private String analyticsPath(final String path, final String engineKey, final String externalId, final String query, final String queryParameterName) {
+		try {
+			return path + "?engine_key=" + engineKey + "&doc_id=" + externalId + "&" + queryParameterName + "=" + URLEncoder.encode(query, "UTF-8");
 		} catch (UnsupportedEncodingException e) {
 			Log.i(LOG_ID, "Unsupported Encoding: " + e.getMessage());
-		} 
+			return null;
+		}
 	}
 	
-	private HttpUriRequest makeSearch(final OnApiAnswerHandler handler, final String path, final String query, final SwiftypeQueryOptions options, HttpUriRequest previousRequest) {
-		final String body = buildBody(query, options);
-		if (body != EMPTY_BODY) {
-			if (previousRequest != null) {
-				Log.i(LOG_ID, "Abort request: " + previousRequest.getURI());
-				previousRequest.abort();
-			}
-
-			previousRequest = apiConnection.post(path, body);
-			Thread apiFetcher = new Thread(new SearchRequest(previousRequest, handler));
-			apiFetcher.start();
-		} 
-		return previousRequest;
+	private RequestHandle makeSearch(final OnApiAnswerHandler handler, final String path, final String query, final SwiftypeQueryOptions options, final AtomicReference<RequestHandle> current) {
+		final RequestHandle handle = startRequest(path, query, options, null, QosClass.INTERACTIVE, current);
+		if (!handle.isDone()) {
+			executor.executeInteractive(new SearchRequest(handle, handler));
+		}
+		return handle;
+	}
+	
+	private RequestHandle makeSearch(final OnApiStreamHandler handler, final String path, final String query, final SwiftypeQueryOptions options, final ResponseValidator validator, final LatencyBudget budget, final AtomicReference<RequestHandle> current) {
+		final RequestHandle handle = startRequest(path, query, options, validator, QosClass.INTERACTIVE, current);
+		if (!handle.isDone()) {
+			final StreamingSearchRequest searchRequest = new StreamingSearchRequest(handle, handler, latenciesFor(path), budget);
+			// the budget includes the time waiting for a free thread
+			searchRequest.startDeadline();
+			executor.executeInteractive(searchRequest);
+		}
+		return handle;
+	}
+	
+	private LatencyHistogram latenciesFor(final String path) {
+		return SUGGEST_PATH.equals(path) ? suggestLatencies : searchLatencies;
+	}
+	
+	/**
+	 * Create the handle of a new request and cancel the request it replaces
+	 * 
+	 * @param qosClass	{@link QosClass} of the connections sending the request
+	 * @param current	Slot of the latest request of the same kind
+	 */
+	private RequestHandle startRequest(final String path, final String query, final SwiftypeQueryOptions options, final ResponseValidator validator, final int qosClass, final AtomicReference<RequestHandle> current) {
+		// suggests are small and bound by latency, only searches are sized to the link
+		final String body = buildBody(query, SEARCH_PATH.equals(path) ? networkPolicy.adapt(options, apiConnection.getNetworkQuality().getQuality()) : options);
+		if (body == EMPTY_BODY) {
+			return RequestHandle.failed(null);
+		}
+		
+		final RequestHandle handle = new RequestHandle(apiConnection.conditional(apiConnection.post(path, body), validator).setQosClass(qosClass));
+		final RequestHandle previous = current.getAndSet(handle);
+		if (previous != null && previous.cancel()) {
+			Log.i(LOG_ID, "Abort request: " + previous.getUrl());
+		}
+		return handle;
 	}
 	
 	private String buildBody(final String query, final SwiftypeQueryOptions options) {
@@ -101,10 +373,10 @@ public class Engine {
 	}
 	
 	private class AnalyticsUpdater implements Runnable {
-		private final HttpUriRequest request;
+		private final TransportRequest request;
 		
 		public AnalyticsUpdater(final String path) {
-			request = apiConnection.get(path);
+			request = apiConnection.get(path).setQosClass(QosClass.BACKGROUND);
 		}
 		
 		public void run() {
@@ -112,22 +384,26 @@ public class Engine {
 		}
 	}
 	
-	private class SearchRequest implements Runnable {
+	private class SearchRequest implements Runnable, RequestExecutor.Droppable {
 		private final String LOG_ID = SearchRequest.class.getSimpleName();
 		
-		private volatile HttpUriRequest request;
-		private OnApiAnswerHandler handler;
+		private final RequestHandle handle;
+		private final TransportRequest request;
+		private final OnApiAnswerHandler handler;
 		
-		public SearchRequest(final HttpUriRequest request, final OnApiAnswerHandler handler) {
-			this.request = request;
+		public SearchRequest(final RequestHandle handle, final OnApiAnswerHandler handler) {
+			this.handle = handle;
+			this.request = handle.getRequest();
 			this.handler = handler;
 		}
 
 		@Override
 		public void run() {			
+			final long start = System.currentTimeMillis();
 			String answer = apiConnection.execute(request);
 			if (answer == null) {
-				Log.i(LOG_ID, "No answer for request " + request.getURI() + " (aborted: " + request.isAborted() + " )");
+				Log.i(LOG_ID, "No answer for request " + request.getUrl() + " (aborted: " + request.isAborted() + " )");
+				handle.fail();
 				return;
 			} else {
 				Log.i(LOG_ID, "Answer: " + answer);
@@ -140,11 +416,312 @@ public class Engine {
 				Log.i(LOG_ID, "Couldn't parse response: " + answer);
 				results = new JSONObject();
 			}
-			handler.onApiAnswer(results);
+			Log.i(LOG_ID, "Received and parsed " + answer.length() + " chars in " + (System.currentTimeMillis() - start) + "ms");
+			if (!handle.isCancelled()) {
+				handler.onApiAnswer(results);
+				handle.complete();
+			}
+		}
+		
+		@Override
+		public void onDropped() {
+			Log.i(LOG_ID, "Dropped from a full queue: " + request.getUrl());
+			handle.fail();
+		}
+	}
+	
+	/**
+	 * Streams a search or suggest response to the handler. If the budget
+	 * allows it, a duplicate request is sent once the original one took longer
+	 * than the configured percentile of recent requests. Whichever attempt
+	 * receives its response headers first is read, the other one is aborted.
+	 */
+	private class StreamingSearchRequest implements Runnable, RestConnection.StreamHandler, RequestExecutor.Droppable {
+		private final String LOG_ID = StreamingSearchRequest.class.getSimpleName();
+		private static final String FIELD_RECORDS = "records";
+		private static final String FIELD_INFO = "info";
+		
+		private final RequestHandle handle;
+		private final TransportRequest request;
+		private final OnApiStreamHandler handler;
+		private final LatencyHistogram latencies;
+		private final LatencyBudget budget;
+		private final AtomicReference<TransportRequest> winner = new AtomicReference<TransportRequest>();
+		private final AtomicInteger runningAttempts = new AtomicInteger(1);
+		private volatile TransportRequest hedge;
+		private volatile boolean finished = false;
+		private ScheduledFuture<?> deadlineTimer;
+		private ScheduledFuture<?> hedgeTimer;
+		private long start;
+		private long firstRecord;
+		private int recordCount;
+		private boolean parsed = false;
+		private boolean notModified = false;
+		
+		public StreamingSearchRequest(final RequestHandle handle, final OnApiStreamHandler handler, final LatencyHistogram latencies, final LatencyBudget budget) {
+			this.handle = handle;
+			this.request = handle.getRequest();
+			this.handler = handler;
+			this.latencies = latencies;
+			this.budget = budget;
+		}
+		
+		public synchronized void startDeadline() {
+			if (!budget.hasDeadline()) {
+				return;
+			}
+			deadlineTimer = executor.schedule(new Runnable() {
+				@Override
+				public void run() {
+					// the primary attempt is already aborted if the hedge won, abort() covers the hedge as well
+					if (!finished) {
+						deadlinesExceeded.incrementAndGet();
+						Log.i(LOG_ID, "Deadline of " + budget.getDeadline() + "ms exceeded: " + request.getUrl());
+						request.abort();
+					}
+				}
+			}, budget.getDeadline());
+		}
+		
+		@Override
+		public void run() {
+			if (handle.isCancelled()) {
+				return;
+			}
+			start = System.currentTimeMillis();
+			startHedgeTimer();
+			attempt(request);
+		}
+		
+		private synchronized void startHedgeTimer() {
+			final long delay = budget.getHedgeDelay(latencies);
+			if (delay < 0) {
+				return;
+			}
+			if (!allowSpeculation()) {
+				speculationsSkipped.incrementAndGet();
+				return;
+			}
+			hedgeTimer = executor.schedule(new Runnable() {
+				@Override
+				public void run() {
+					if (finished || winner.get() != null || request.isAborted()) {
+						return;
+					}
+					final TransportRequest duplicate = request.duplicate();
+					runningAttempts.incrementAndGet();
+					try {
+						executor.executeHedge(new Runnable() {
+							@Override
+							public void run() {
+								attempt(duplicate);
+							}
+						});
+					} catch (RejectedExecutionException e) {
+						Log.i(LOG_ID, "Too many hedged requests, not hedging: " + request.getUrl());
+						attemptFailed(duplicate);
+						return;
+					}
+					hedge = duplicate;
+					hedgesSent.incrementAndGet();
+					Log.i(LOG_ID, "Hedged after " + delay + "ms: " + request.getUrl());
+				}
+			}, delay);
+		}
+		
+		private void attempt(final TransportRequest attempt) {
+			final long sent = System.currentTimeMillis();
+			TransportResponse response = null;
+			try {
+				response = apiConnection.open(attempt);
+				if (!winner.compareAndSet(null, attempt)) {
+					// the other attempt was faster
+					return;
+				}
+				latencies.record(System.currentTimeMillis() - sent);
+				abortLoser(attempt);
+				
+				final ResponseValidator validator = apiConnection.consume(attempt, response, this);
+				if (handle.isCancelled()) {
+					Log.i(LOG_ID, "Cancelled: " + attempt.getUrl());
+				} else if (validator != null && parsed) {
+					handler.onComplete(validator);
+				} else if (!notModified) {
+					// nothing was delivered to the handler, e.g. the response couldn't be parsed
+					Log.i(LOG_ID, "No answer for request " + attempt.getUrl() + " (aborted: " + attempt.isAborted() + ", parsed: " + parsed + " )");
+					finish(false);
+					return;
+				}
+				finish(true);
+			} catch (IOException e) {
+				Log.i(LOG_ID, "Aborted: " + e.getMessage());
+				attemptFailed(attempt);
+			} finally {
+				if (response != null) {
+					response.close();
+				}
+			}
+		}
+		
+		private void abortLoser(final TransportRequest attempt) {
+			synchronized (this) {
+				if (hedgeTimer != null) {
+					hedgeTimer.cancel(false);
+				}
+			}
+			if (attempt == request) {
+				final TransportRequest duplicate = hedge;
+				if (duplicate != null) {
+					duplicate.abortAttempt();
+				}
+			} else {
+				hedgesWon.incrementAndGet();
+				request.abortAttempt();
+			}
+		}
+		
+		@Override
+		public void onDropped() {
+			Log.i(LOG_ID, "Dropped from a full queue: " + request.getUrl());
+			finish(false);
+		}
+		
+		private void attemptFailed(final TransportRequest attempt) {
+			final TransportRequest winningAttempt = winner.get();
+			if (winningAttempt == attempt || (winningAttempt == null && runningAttempts.decrementAndGet() == 0)) {
+				Log.i(LOG_ID, "No answer for request " + attempt.getUrl() + " (aborted: " + attempt.isAborted() + " )");
+				finish(false);
+			}
+		}
+		
+		private void finish(final boolean successful) {
+			synchronized (this) {
+				finished = true;
+				if (deadlineTimer != null) {
+					deadlineTimer.cancel(false);
+				}
+				if (hedgeTimer != null) {
+					hedgeTimer.cancel(false);
+				}
+			}
+			if (successful) {
+				handle.complete();
+			} else {
+				handle.fail();
+			}
+		}
+		
+		@Override
+		public void handleNotModified() {
+			Log.i(LOG_ID, "Not modified: " + request.getUrl());
+			notModified = true;
+			if (!handle.isCancelled()) {
+				handler.onNotModified();
+			}
+		}
+		
+		@Override
+		public void handleStream(final Reader reader) throws IOException {
+			final BufferPool bufferPool = apiConnection.getBufferPool();
+			final char[] buffer = bufferPool.acquireChars();
+			final JsonStreamReader json = new JsonStreamReader(reader, buffer);
+			try {
+				json.beginObject();
+				while (json.hasNext()) {
+					final String name = json.nextName();
+					if (FIELD_RECORDS.equals(name) && json.peekObject()) {
+						readRecords(json);
+					} else if (FIELD_INFO.equals(name) && json.peekObject()) {
+						readInfo(json);
+					} else {
+						json.skipValue();
+					}
+				}
+				json.endObject();
+			} catch (IOException e) {
+				if (winner.get().isAborted()) {
+					throw e;
+				}
+				Log.i(LOG_ID, "Couldn't parse response: " + e.getMessage());
+				return;
+			} finally {
+				bufferPool.release(buffer);
+			}
+			
+			Log.i(LOG_ID, "Streamed " + recordCount + " records (" + json.getCharsRead() + " chars) in " + (System.currentTimeMillis() - start) + "ms, first record after " + (firstRecord - start) + "ms");
+			parsed = true;
+		}
+		
+		private void readRecords(final JsonStreamReader json) throws IOException {
+			json.beginObject();
+			while (json.hasNext()) {
+				final String documentTypeName = json.nextName();
+				if (!json.peekArray()) {
+					json.skipValue();
+					continue;
+				}
+				json.beginArray();
+				handler.onDocumentType(documentTypeName);
+				while (json.hasNext()) {
+					if (handle.isCancelled()) {
+						throw new IOException("Cancelled while parsing");
+					}
+					if (!json.peekObject()) {
+						json.skipValue();
+						continue;
+					}
+					final JSONObject record = json.nextObject();
+					if (recordCount++ == 0) {
+						firstRecord = System.currentTimeMillis();
+					}
+					handler.onRecord(documentTypeName, record);
+				}
+				json.endArray();
+			}
+			json.endObject();
+		}
+		
+		private void readInfo(final JsonStreamReader json) throws IOException {
+			json.beginObject();
+			while (json.hasNext()) {
+				final String documentTypeName = json.nextName();
+				if (json.peekObject()) {
+					handler.onInfo(documentTypeName, json.nextObject());
+				} else {
+					json.skipValue();
+				}
+			}
+			json.endObject();
 		}
 	}
 	
 	public interface OnApiAnswerHandler {
 		public void onApiAnswer(final JSONObject response);
 	}
+	
+	/**
+	 * Receives a search or suggest response while it is parsed. Records
+	 * and infos are delivered in the order of the response and
+	 * {@link #onComplete(ResponseValidator)} is called once the whole response
+	 * was read. Nothing is called after a failed or cancelled request.
+	 */
+	public interface OnApiStreamHandler {
+		/**
+		 * The records of a document type start, called even if it has none
+		 */
+		public void onDocumentType(final String documentTypeName);
+		
+		public void onRecord(final String documentTypeName, final JSONObject record);
+		public void onInfo(final String documentTypeName, final JSONObject info);
+		
+		/**
+		 * @param validator		Validators to revalidate this response later
+		 */
+		public void onComplete(final ResponseValidator validator);
+		
+		/**
+		 * The response of a conditional request is unchanged, no records follow
+		 */
+		public void onNotModified();
+	}
 }
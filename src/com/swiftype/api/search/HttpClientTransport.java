@@ -0,0 +1,89 @@
+package com.swiftype.api.search;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+
+/**
+ * {@link Transport} based on Apache's DefaultHttpClient, the preferred client up to Froyo
+ */
+public class HttpClientTransport implements Transport {
+	private final DefaultHttpClient client;
+	
+	public HttpClientTransport(final TransportConfig config) {
+		final SchemeRegistry schemeRegistry = new SchemeRegistry();
+		schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+		schemeRegistry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+		final HttpParams params = new BasicHttpParams();
+		ConnManagerParams.setMaxTotalConnections(params, config.getMaxConnections());
+		ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(config.getMaxConnections()));
+		HttpConnectionParams.setConnectionTimeout(params, config.getConnectTimeout());
+		HttpConnectionParams.setSoTimeout(params, config.getReadTimeout());
+		final ClientConnectionManager connectionManager = new ThreadSafeClientConnManager(params, schemeRegistry);
+		
+		client = new DefaultHttpClient(connectionManager, params);
+		// retries are up to the RetryPolicy of the RestConnection
+		client.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler(0, false));
+		HttpProtocolParams.setUserAgent(client.getParams(), config.getUserAgent());
+	}
+	
+	@Override
+	public TransportResponse execute(final TransportRequest request) throws IOException {
+		final HttpUriRequest httpRequest;
+		if (request.getBody() != null) {
+			final HttpPost post = new HttpPost(request.getUrl());
+			post.setEntity(new ByteArrayEntity(request.getBody()));
+			httpRequest = post;
+		} else {
+			httpRequest = new HttpGet(request.getUrl());
+		}
+		for (final Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+			httpRequest.setHeader(header.getKey(), header.getValue());
+		}
+		
+		request.setCancellable(new TransportRequest.Cancellable() {
+			@Override
+			public void cancel() {
+				httpRequest.abort();
+			}
+		});
+		
+		final HttpResponse httpResponse = client.execute(httpRequest);
+		final HttpEntity entity = httpResponse.getEntity();
+		final TransportResponse response = new TransportResponse(httpResponse.getStatusLine().getStatusCode(),
+																 (entity == null) ? null : entity.getContent(),
+																 (entity == null) ? 0 : entity.getContentLength());
+		for (final Header header : httpResponse.getAllHeaders()) {
+			if (response.getHeader(header.getName()) == null) {
+				response.setHeader(header.getName(), header.getValue());
+			}
+		}
+		return response;
+	}
+	
+	@Override
+	public void shutdown() {
+		client.getConnectionManager().shutdown();
+	}
+}
@@ -0,0 +1,309 @@
+package com.swiftype.api.search;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Minimal pull parser for JSON documents. It reads the document token by
+ * token, so callers can walk large responses and only materialize the parts
+ * they need (e.g. one record at a time) with {@link #nextValue()}.
+ *
+ * android.util.JsonReader is not available before API level 11.
+ */
+public class JsonStreamReader {
+	private static final int BUFFER_SIZE = 1024;
+	
+	private final Reader in;
+	private final char[] buffer;
+	private int position = 0;
+	private int limit = 0;
+	private long charsRead = 0;
+	
+	public JsonStreamReader(final Reader in) {
+		this(in, new char[BUFFER_SIZE]);
+	}
+	
+	public JsonStreamReader(final Reader in, final char[] buffer) {
+		this.in = in;
+		this.buffer = buffer;
+	}
+	
+	/**
+	 * @return	Number of characters consumed so far
+	 */
+	public long getCharsRead() {
+		return charsRead - (limit - position);
+	}
+	
+	public void beginObject() throws IOException {
+		expect('{');
+	}
+	
+	public void endObject() throws IOException {
+		expect('}');
+	}
+	
+	public void beginArray() throws IOException {
+		expect('[');
+	}
+	
+	public void endArray() throws IOException {
+		expect(']');
+	}
+	
+	/**
+	 * @return	True if the current object or array has another element. Consumes separating commas.
+	 */
+	public boolean hasNext() throws IOException {
+		int c = peekToken();
+		if (c == ',') {
+			position++;
+			c = peekToken();
+		}
+		return c != '}' && c != ']' && c != -1;
+	}
+	
+	public boolean peekObject() throws IOException {
+		return peekToken() == '{';
+	}
+	
+	public boolean peekArray() throws IOException {
+		return peekToken() == '[';
+	}
+	
+	public String nextName() throws IOException {
+		final String name = nextString();
+		expect(':');
+		return name;
+	}
+	
+	/**
+	 * Read the next value into the matching org.json representation
+	 *
+	 * @return	JSONObject, JSONArray, String, Boolean, Long, Double or JSONObject.NULL
+	 */
+	public Object nextValue() throws IOException {
+		final int c = peekToken();
+		switch (c) {
+		case '{':
+			return nextObject();
+		case '[':
+			return nextArray();
+		case '"':
+			return nextString();
+		default:
+			return nextLiteral();
+		}
+	}
+	
+	public JSONObject nextObject() throws IOException {
+		final JSONObject object = new JSONObject();
+		beginObject();
+		try {
+			while (hasNext()) {
+				final String name = nextName();
+				object.put(name, nextValue());
+			}
+		} catch (JSONException e) {
+			throw new IOException("Invalid object: " + e.getMessage());
+		}
+		endObject();
+		return object;
+	}
+	
+	public JSONArray nextArray() throws IOException {
+		final JSONArray array = new JSONArray();
+		beginArray();
+		while (hasNext()) {
+			array.put(nextValue());
+		}
+		endArray();
+		return array;
+	}
+	
+	/**
+	 * Skip the next value without materializing it
+	 */
+	public void skipValue() throws IOException {
+		final int c = peekToken();
+		if (c == '{') {
+			beginObject();
+			while (hasNext()) {
+				nextName();
+				skipValue();
+			}
+			endObject();
+		} else if (c == '[') {
+			beginArray();
+			while (hasNext()) {
+				skipValue();
+			}
+			endArray();
+		} else if (c == '"') {
+			skipString();
+		} else {
+			nextLiteral();
+		}
+	}
+	
+	public String nextString() throws IOException {
+		expect('"');
+		final StringBuilder sb = new StringBuilder();
+		while (true) {
+			// copy unescaped runs in one go
+			int start = position;
+			while (position < limit) {
+				final char c = buffer[position];
+				if (c == '"' || c == '\\') {
+					break;
+				}
+				position++;
+			}
+			sb.append(buffer, start, position - start);
+			
+			if (position == limit) {
+				if (!fill()) {
+					throw new IOException("Unterminated string");
+				}
+				continue;
+			}
+			
+			final char c = buffer[position++];
+			if (c == '"') {
+				return sb.toString();
+			}
+			sb.append(readEscape());
+		}
+	}
+	
+	private void skipString() throws IOException {
+		expect('"');
+		while (true) {
+			final int c = read();
+			if (c == -1) {
+				throw new IOException("Unterminated string");
+			} else if (c == '"') {
+				return;
+			} else if (c == '\\') {
+				readEscape();
+			}
+		}
+	}
+	
+	private char readEscape() throws IOException {
+		final int c = read();
+		switch (c) {
+		case 'b':
+			return '\b';
+		case 'f':
+			return '\f';
+		case 'n':
+			return '\n';
+		case 'r':
+			return '\r';
+		case 't':
+			return '\t';
+		case 'u':
+			int value = 0;
+			for (int i = 0; i < 4; ++i) {
+				final int digit = Character.digit(read(), 16);
+				if (digit == -1) {
+					throw new IOException("Invalid unicode escape");
+				}
+				value = (value << 4) + digit;
+			}
+			return (char) value;
+		case -1:
+			throw new IOException("Unterminated escape");
+		default:
+			return (char) c;
+		}
+	}
+	
+	private Object nextLiteral() throws IOException {
+		peekToken();
+		final StringBuilder sb = new StringBuilder();
+		while (true) {
+			if (position == limit && !fill()) {
+				break;
+			}
+			final char c = buffer[position];
+			if (c == ',' || c == '}' || c == ']' || c == ':' || Character.isWhitespace(c)) {
+				break;
+			}
+			sb.append(c);
+			position++;
+		}
+		
+		final String literal = sb.toString();
+		if (literal.length() == 0) {
+			throw new IOException("Expected value at character " + getCharsRead());
+		} else if (literal.equals("true")) {
+			return Boolean.TRUE;
+		} else if (literal.equals("false")) {
+			return Boolean.FALSE;
+		} else if (literal.equals("null")) {
+			return JSONObject.NULL;
+		}
+		
+		try {
+			if (literal.indexOf('.') == -1 && literal.indexOf('e') == -1 && literal.indexOf('E') == -1) {
+				try {
+					return Long.valueOf(literal);
+				} catch (NumberFormatException e) {
+					// too large for a long
+				}
+			}
+			return Double.valueOf(literal);
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid literal: " + literal);
+		}
+	}
+	
+	private void expect(final char expected) throws IOException {
+		final int c = peekToken();
+		if (c != expected) {
+			throw new IOException("Expected '" + expected + "' but found " + (c == -1 ? "end of input" : "'" + (char) c + "'") + " at character " + getCharsRead());
+		}
+		position++;
+	}
+	
+	/**
+	 * Skip whitespace and return the next character without consuming it
+	 */
+	private int peekToken() throws IOException {
+		while (true) {
+			if (position == limit && !fill()) {
+				return -1;
+			}
+			final char c = buffer[position];
+			if (!Character.isWhitespace(c)) {
+				return c;
+			}
+			position++;
+		}
+	}
+	
+	private int read() throws IOException {
+		if (position == limit && !fill()) {
+			return -1;
+		}
+		return buffer[position++];
+	}
+	
+	private boolean fill() throws IOException {
+		final int count = in.read(buffer, 0, buffer.length);
+		if (count <= 0) {
+			position = limit = 0;
+			return false;
+		}
+		position = 0;
+		limit = count;
+		charsRead += count;
+		return true;
+	}
+}
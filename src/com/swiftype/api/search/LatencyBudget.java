@@ -0,0 +1,118 @@
+package com.swiftype.api.search;
+
+/**
+ * Time a search or suggest request may take before it is given up, and
+ * whether a duplicate request is sent if the first one is slower than usual.
+ */
+public class LatencyBudget {
+	/**
+	 * No deadline and no hedging
+	 */
+	public static final LatencyBudget NONE = new Builder().build();
+	
+	private final long deadline;
+	private final int hedgePercentile;
+	private final long minHedgeDelay;
+	private final int minHedgeSamples;
+	
+	private LatencyBudget(final Builder builder) {
+		deadline = builder.deadline;
+		hedgePercentile = builder.hedgePercentile;
+		minHedgeDelay = builder.minHedgeDelay;
+		minHedgeSamples = builder.minHedgeSamples;
+	}
+	
+	/**
+	 * @return	Milliseconds after which the request is aborted, 0 for no deadline
+	 */
+	public long getDeadline() {
+		return deadline;
+	}
+	
+	public boolean hasDeadline() {
+		return deadline > 0;
+	}
+	
+	/**
+	 * @return	Latency percentile after which a hedged request is sent, 0 for no hedging
+	 */
+	public int getHedgePercentile() {
+		return hedgePercentile;
+	}
+	
+	public boolean isHedged() {
+		return hedgePercentile > 0;
+	}
+	
+	/**
+	 * @param latencies	Recent latencies of the same kind of request
+	 * @return			Milliseconds to wait for a response before hedging, -1 if the request should not be hedged
+	 */
+	public long getHedgeDelay(final LatencyHistogram latencies) {
+		if (!isHedged() || latencies.getCount() < minHedgeSamples) {
+			return -1;
+		}
+		final long delay = Math.max(minHedgeDelay, latencies.getPercentile(hedgePercentile));
+		if (hasDeadline() && delay >= deadline) {
+			return -1;
+		}
+		return delay;
+	}
+	
+	@Override
+	public String toString() {
+		return "deadline: " + deadline + "ms, hedge percentile: " + hedgePercentile;
+	}
+	
+	public static class Builder {
+		private long deadline = 0;
+		private int hedgePercentile = 0;
+		private long minHedgeDelay = 50;
+		private int minHedgeSamples = 10;
+		
+		/**
+		 * @param deadline	Milliseconds after which the request is aborted, 0 for no deadline
+		 */
+		public Builder deadline(final long deadline) {
+			if (deadline < 0) {
+				throw new IllegalArgumentException();
+			}
+			this.deadline = deadline;
+			return this;
+		}
+		
+		/**
+		 * Send a duplicate request if no response arrived within the given
+		 * percentile of recent latencies, the first response is used.
+		 * 
+		 * @param hedgePercentile	Percentile between 1 and 100, 0 to disable hedging
+		 */
+		public Builder hedgePercentile(final int hedgePercentile) {
+			if (hedgePercentile < 0 || hedgePercentile > 100) {
+				throw new IllegalArgumentException("Invalid percentile: " + hedgePercentile);
+			}
+			this.hedgePercentile = hedgePercentile;
+			return this;
+		}
+		
+		/**
+		 * @param minHedgeDelay		Milliseconds to wait at least before hedging
+		 */
+		public Builder minHedgeDelay(final long minHedgeDelay) {
+			this.minHedgeDelay = minHedgeDelay;
+			return this;
+		}
+		
+		/**
+		 * @param minHedgeSamples	Latency samples needed before requests are hedged
+		 */
+		public Builder minHedgeSamples(final int minHedgeSamples) {
+			this.minHedgeSamples = minHedgeSamples;
+			return this;
+		}
+		
+		public LatencyBudget build() {
+			return new LatencyBudget(this);
+		}
+	}
+}
@@ -0,0 +1,67 @@
+package com.swiftype.api.search;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the most recent latency samples of a kind of request to estimate
+ * percentiles, e.g. to decide when a request is slow enough to be hedged.
+ */
+public class LatencyHistogram {
+	public static final int DEFAULT_SIZE = 128;
+	
+	private final long[] samples;
+	private int next = 0;
+	private int count = 0;
+	
+	public LatencyHistogram() {
+		this(DEFAULT_SIZE);
+	}
+	
+	/**
+	 * @param size	Number of recent samples kept
+	 */
+	public LatencyHistogram(final int size) {
+		if (size < 1) {
+			throw new IllegalArgumentException();
+		}
+		samples = new long[size];
+	}
+	
+	public synchronized void record(final long millis) {
+		samples[next] = millis;
+		next = (next + 1) % samples.length;
+		if (count < samples.length) {
+			++count;
+		}
+	}
+	
+	public synchronized int getCount() {
+		return count;
+	}
+	
+	/**
+	 * @param percentile	Percentile between 1 and 100
+	 * @return				Latency in milliseconds below which the percentage of recent samples lie, -1 without samples
+	 */
+	public long getPercentile(final int percentile) {
+		if (percentile < 1 || percentile > 100) {
+			throw new IllegalArgumentException("Invalid percentile: " + percentile);
+		}
+		final long[] sorted;
+		synchronized (this) {
+			if (count == 0) {
+				return -1;
+			}
+			sorted = new long[count];
+			System.arraycopy(samples, 0, sorted, 0, count);
+		}
+		Arrays.sort(sorted);
+		final int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+		return sorted[Math.max(0, index)];
+	}
+	
+	@Override
+	public String toString() {
+		return "samples: " + getCount() + ", p50: " + getPercentile(50) + "ms, p95: " + getPercentile(95) + "ms, p99: " + getPercentile(99) + "ms";
+	}
+}
@@ -0,0 +1,80 @@
+package com.swiftype.api.search;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory {@link Transport} answering requests with canned responses.
+ * Used to exercise and benchmark the request pipeline without a network.
+ */
+public class LoopbackTransport implements Transport {
+	private final Map<String, Responder> responders = new ConcurrentHashMap<String, Responder>();
+	private final AtomicLong requestCount = new AtomicLong();
+	
+	/**
+	 * Answer requests for the path (e.g. "engines/suggest.json") with the responder
+	 */
+	public LoopbackTransport respond(final String path, final Responder responder) {
+		responders.put(path, responder);
+		return this;
+	}
+	
+	/**
+	 * Answer requests for the path with a fixed status and body
+	 */
+	public LoopbackTransport respond(final String path, final int statusCode, final String body) {
+		final byte[] bytes;
+		try {
+			bytes = body.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalArgumentException(e.getMessage());
+		}
+		return respond(path, new Responder() {
+			@Override
+			public TransportResponse respond(final TransportRequest request) {
+				return new TransportResponse(statusCode, new ByteArrayInputStream(bytes), bytes.length);
+			}
+		});
+	}
+	
+	@Override
+	public TransportResponse execute(final TransportRequest request) throws IOException {
+		requestCount.incrementAndGet();
+		if (request.isAborted()) {
+			throw new IOException("Request aborted");
+		}
+		
+		final String path = path(request.getUrl());
+		for (final Map.Entry<String, Responder> responder : responders.entrySet()) {
+			if (path.endsWith(responder.getKey())) {
+				return responder.getValue().respond(request);
+			}
+		}
+		return new TransportResponse(404, null, 0);
+	}
+	
+	/**
+	 * @return	Number of requests executed by this transport
+	 */
+	public long getRequestCount() {
+		return requestCount.get();
+	}
+	
+	@Override
+	public void shutdown() {
+		responders.clear();
+	}
+	
+	private static String path(final String url) {
+		final int query = url.indexOf('?');
+		return (query == -1) ? url : url.substring(0, query);
+	}
+	
+	public interface Responder {
+		public TransportResponse respond(final TransportRequest request) throws IOException;
+	}
+}
@@ -0,0 +1,141 @@
+package com.swiftype.api.search;
+
+/**
+ * Adapts requests to the estimated link quality: on slow links searches ask
+ * for fewer results per page and no speculative requests (prefetches and
+ * hedges) are sent, on fast links searches ask for more results per page.
+ * The stored options are left alone, only the request on the wire changes.
+ */
+public class NetworkPolicy {
+	/**
+	 * Results per page of the API if a search doesn't set per_page
+	 */
+	public static final int API_PER_PAGE = 20;
+	
+	/**
+	 * Never adapts requests
+	 */
+	public static final NetworkPolicy NONE = new Builder().slowPerPageFactor(1).fastPerPageFactor(1).speculateOnSlowLinks(true).build();
+	public static final NetworkPolicy DEFAULT = new Builder().build();
+	
+	private final double slowPerPageFactor;
+	private final double fastPerPageFactor;
+	private final int minPerPage;
+	private final int maxPerPage;
+	private final boolean speculateOnSlowLinks;
+	
+	private NetworkPolicy(final Builder builder) {
+		slowPerPageFactor = builder.slowPerPageFactor;
+		fastPerPageFactor = builder.fastPerPageFactor;
+		minPerPage = builder.minPerPage;
+		maxPerPage = builder.maxPerPage;
+		speculateOnSlowLinks = builder.speculateOnSlowLinks;
+	}
+	
+	/**
+	 * @param perPage	Requested results per page, -1 for the API default
+	 * @param quality	Quality of {@link NetworkQualityEstimator}
+	 * @return			Results per page to ask for, -1 to keep the API default
+	 */
+	public int getPerPage(final int perPage, final int quality) {
+		final double factor;
+		if (quality == NetworkQualityEstimator.SLOW) {
+			factor = slowPerPageFactor;
+		} else if (quality == NetworkQualityEstimator.FAST) {
+			factor = fastPerPageFactor;
+		} else {
+			return perPage;
+		}
+		if (factor == 1) {
+			return perPage;
+		}
+		
+		final int base = (perPage > 0) ? perPage : API_PER_PAGE;
+		int adapted = (int) Math.round(base * factor);
+		// never cross the requested size in the wrong direction
+		adapted = (factor < 1) ? Math.max(Math.min(minPerPage, base), adapted) : Math.min(Math.max(maxPerPage, base), adapted);
+		return adapted;
+	}
+	
+	/**
+	 * @return	Options to send for the link quality, the given ones if nothing changes
+	 */
+	public SwiftypeQueryOptions adapt(final SwiftypeQueryOptions options, final int quality) {
+		final int perPage = options.getPerPage();
+		final int adapted = getPerPage(perPage, quality);
+		return (adapted == perPage) ? options : options.withPerPage(adapted);
+	}
+	
+	/**
+	 * @return	False if prefetches and hedged requests should not be sent
+	 */
+	public boolean allowSpeculation(final int quality) {
+		return speculateOnSlowLinks || quality != NetworkQualityEstimator.SLOW;
+	}
+	
+	@Override
+	public String toString() {
+		return "slow: x" + slowPerPageFactor + ", fast: x" + fastPerPageFactor + ", per page: " + minPerPage + "-" + maxPerPage + ", speculate on slow links: " + speculateOnSlowLinks;
+	}
+	
+	public static class Builder {
+		private double slowPerPageFactor = 0.5;
+		private double fastPerPageFactor = 1.5;
+		private int minPerPage = 5;
+		private int maxPerPage = 50;
+		private boolean speculateOnSlowLinks = false;
+		
+		/**
+		 * @param slowPerPageFactor	Factor applied to per_page on slow links, between 0 and 1
+		 */
+		public Builder slowPerPageFactor(final double slowPerPageFactor) {
+			if (slowPerPageFactor <= 0 || slowPerPageFactor > 1) {
+				throw new IllegalArgumentException();
+			}
+			this.slowPerPageFactor = slowPerPageFactor;
+			return this;
+		}
+		
+		/**
+		 * @param fastPerPageFactor	Factor applied to per_page on fast links, at least 1
+		 */
+		public Builder fastPerPageFactor(final double fastPerPageFactor) {
+			if (fastPerPageFactor < 1) {
+				throw new IllegalArgumentException();
+			}
+			this.fastPerPageFactor = fastPerPageFactor;
+			return this;
+		}
+		
+		/**
+		 * @param minPerPage	Results per page slow links are reduced to at most
+		 */
+		public Builder minPerPage(final int minPerPage) {
+			if (minPerPage < 1) {
+				throw new IllegalArgumentException();
+			}
+			this.minPerPage = minPerPage;
+			return this;
+		}
+		
+		/**
+		 * @param maxPerPage	Results per page fast links are widened to at most
+		 */
+		public Builder maxPerPage(final int maxPerPage) {
+			if (maxPerPage < 1) {
+				throw new IllegalArgumentException();
+			}
+			this.maxPerPage = maxPerPage;
+			return this;
+		}
+		
+		public Builder speculateOnSlowLinks(final boolean speculateOnSlowLinks) {
+			this.speculateOnSlowLinks = speculateOnSlowLinks;
+			return this;
+		}
+		
+		public NetworkPolicy build() {
+			return new NetworkPolicy(this);
+		}
+	}
+}
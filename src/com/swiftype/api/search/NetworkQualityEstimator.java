@@ -0,0 +1,130 @@
+package com.swiftype.api.search;
+
+/**
+ * Estimates the quality of the link to the API from the timings a
+ * {@link RestConnection} observes: the time until the response headers
+ * arrive and the throughput of response bodies. Both are moving averages, so
+ * the estimate follows changes of the link within a few requests.
+ */
+public class NetworkQualityEstimator {
+	public static final int UNKNOWN = 0;
+	public static final int SLOW = 1;
+	public static final int MODERATE = 2;
+	public static final int FAST = 3;
+	
+	/**
+	 * Weight of a new sample in the moving averages
+	 */
+	private static final double WEIGHT = 0.3;
+	
+	/**
+	 * Latency samples needed before the quality is known
+	 */
+	private static final int MIN_SAMPLES = 3;
+	
+	/**
+	 * Smaller bodies are dominated by latency and say little about throughput
+	 */
+	public static final long MIN_THROUGHPUT_BYTES = 4 * 1024;
+	
+	public static final long SLOW_LATENCY = 1000;
+	public static final long FAST_LATENCY = 200;
+	public static final long SLOW_THROUGHPUT = 16 * 1024;
+	public static final long FAST_THROUGHPUT = 256 * 1024;
+	
+	private double latency = -1;
+	private double throughput = -1;
+	private long latencySamples = 0;
+	private long throughputSamples = 0;
+	
+	/**
+	 * @param millis	Time from sending a request until its response headers arrived
+	 */
+	public synchronized void recordLatency(final long millis) {
+		latency = average(latency, millis);
+		++latencySamples;
+	}
+	
+	/**
+	 * @param bytes		Bytes of a response body as received
+	 * @param millis	Time it took to receive them
+	 */
+	public synchronized void recordThroughput(final long bytes, final long millis) {
+		if (bytes < MIN_THROUGHPUT_BYTES) {
+			return;
+		}
+		throughput = average(throughput, bytes * 1000.0 / Math.max(1, millis));
+		++throughputSamples;
+	}
+	
+	/**
+	 * @return	Average time until response headers arrive in milliseconds, -1 without samples
+	 */
+	public synchronized long getLatency() {
+		return Math.round(latency);
+	}
+	
+	/**
+	 * @return	Average throughput of response bodies in bytes per second, -1 without samples
+	 */
+	public synchronized long getThroughput() {
+		return Math.round(throughput);
+	}
+	
+	public synchronized long getLatencySampleCount() {
+		return latencySamples;
+	}
+	
+	public synchronized long getThroughputSampleCount() {
+		return throughputSamples;
+	}
+	
+	/**
+	 * @return	One of UNKNOWN, SLOW, MODERATE or FAST
+	 */
+	public synchronized int getQuality() {
+		if (latencySamples < MIN_SAMPLES) {
+			return UNKNOWN;
+		}
+		final boolean hasThroughput = throughput >= 0;
+		if (latency >= SLOW_LATENCY || (hasThroughput && throughput < SLOW_THROUGHPUT)) {
+			return SLOW;
+		}
+		if (latency <= FAST_LATENCY && (!hasThroughput || throughput >= FAST_THROUGHPUT)) {
+			return FAST;
+		}
+		return MODERATE;
+	}
+	
+	/**
+	 * Forget all samples, e.g. because the device switched networks
+	 */
+	public synchronized void reset() {
+		latency = -1;
+		throughput = -1;
+		latencySamples = 0;
+		throughputSamples = 0;
+	}
+	
+	public static String getQualityName(final int quality) {
+		switch (quality) {
+		case SLOW:
+			return "slow";
+		case MODERATE:
+			return "moderate";
+		case FAST:
+			return "fast";
+		default:
+			return "unknown";
+		}
+	}
+	
+	@Override
+	public synchronized String toString() {
+		return getQualityName(getQuality()) + " (latency: " + getLatency() + "ms, throughput: " + getThroughput() + "B/s, samples: " + latencySamples + "/" + throughputSamples + ")";
+	}
+	
+	private static double average(final double current, final double sample) {
+		return (current < 0) ? sample : current + WEIGHT * (sample - current);
+	}
+}
@@ -0,0 +1,41 @@
+package com.swiftype.api.search;
+
+/**
+ * Quality of service classes of API requests. Each class has its own
+ * threads, connection pool and latency histograms, so speculative and
+ * background traffic never takes the resources a user visible request needs.
+ */
+public final class QosClass {
+	/**
+	 * Search and suggest requests the user is waiting for
+	 */
+	public static final int INTERACTIVE = 0;
+	
+	/**
+	 * Speculative searches the user may never look at
+	 */
+	public static final int PREFETCH = 1;
+	
+	/**
+	 * Requests nobody waits for, e.g. analytics
+	 */
+	public static final int BACKGROUND = 2;
+	
+	public static final int COUNT = 3;
+	
+	private static final String[] NAMES = { "interactive", "prefetch", "background" };
+	
+	private QosClass() {
+	}
+	
+	public static String getName(final int qosClass) {
+		check(qosClass);
+		return NAMES[qosClass];
+	}
+	
+	static void check(final int qosClass) {
+		if (qosClass < 0 || qosClass >= COUNT) {
+			throw new IllegalArgumentException("Invalid QoS class: " + qosClass);
+		}
+	}
+}
@@ -0,0 +1,360 @@
+package com.swiftype.api.search;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+/**
+ * Runs the API requests of an {@link Engine} on a bounded thread pool per
+ * {@link QosClass}: one lane for interactive work (search and suggest), one
+ * for prefetches and one for background work (analytics). Lower classes run
+ * with a lower thread priority and never occupy the interactive threads.
+ * The lanes are shared by all engines using the default executor, so no
+ * threads are created per request. A small extra lane runs hedged requests,
+ * so they never wait behind the requests they are meant to overtake, and a
+ * timer thread runs deadlines.
+ */
+public class RequestExecutor {
+	public static final int DEFAULT_INTERACTIVE_THREADS = 2;
+	public static final int DEFAULT_INTERACTIVE_QUEUE_SIZE = 4;
+	public static final int DEFAULT_PREFETCH_THREADS = 1;
+	public static final int DEFAULT_PREFETCH_QUEUE_SIZE = 2;
+	public static final int DEFAULT_BACKGROUND_THREADS = 1;
+	public static final int DEFAULT_BACKGROUND_QUEUE_SIZE = 64;
+	public static final int DEFAULT_HEDGE_THREADS = 1;
+	public static final int DEFAULT_HEDGE_QUEUE_SIZE = 2;
+	
+	private static RequestExecutor defaultExecutor;
+	
+	private final ExecutorService interactive;
+	private final ExecutorService prefetch;
+	private final ExecutorService background;
+	private final ExecutorService hedge = newLane("Swiftype-hedge", DEFAULT_HEDGE_THREADS, DEFAULT_HEDGE_QUEUE_SIZE, Process.THREAD_PRIORITY_DEFAULT, new ThreadPoolExecutor.AbortPolicy());
+	private final ScheduledExecutorService timer = new ScheduledThreadPoolExecutor(1, new LaneThreadFactory("Swiftype-timer", Process.THREAD_PRIORITY_DEFAULT));
+	private final AtomicLong interactiveSubmitted = new AtomicLong();
+	private final AtomicLong prefetchSubmitted = new AtomicLong();
+	private final AtomicLong backgroundSubmitted = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong prefetchDropped = new AtomicLong();
+	private final LatencyHistogram[] queueWaits = new LatencyHistogram[QosClass.COUNT];
+	
+	/**
+	 * Create an executor with the default lane sizes
+	 */
+	public RequestExecutor() {
+		this(DEFAULT_INTERACTIVE_THREADS, DEFAULT_INTERACTIVE_QUEUE_SIZE, DEFAULT_BACKGROUND_THREADS, DEFAULT_BACKGROUND_QUEUE_SIZE);
+	}
+	
+	/**
+	 * Create an executor with custom lane sizes
+	 *
+	 * @param interactiveThreads	Threads for search and suggest requests
+	 * @param interactiveQueueSize	Pending search and suggest requests, the oldest are dropped if exceeded
+	 * @param backgroundThreads		Threads for analytics requests
+	 * @param backgroundQueueSize	Pending analytics requests, the caller runs them if exceeded
+	 */
+	public RequestExecutor(final int interactiveThreads, final int interactiveQueueSize, final int backgroundThreads, final int backgroundQueueSize) {
+		this(interactiveThreads, interactiveQueueSize, DEFAULT_PREFETCH_THREADS, DEFAULT_PREFETCH_QUEUE_SIZE, backgroundThreads, backgroundQueueSize);
+	}
+	
+	/**
+	 * Create an executor with custom lane sizes
+	 *
+	 * @param prefetchThreads		Threads for prefetches
+	 * @param prefetchQueueSize		Pending prefetches, the oldest are dropped if exceeded
+	 */
+	public RequestExecutor(final int interactiveThreads, final int interactiveQueueSize, final int prefetchThreads, final int prefetchQueueSize, final int backgroundThreads, final int backgroundQueueSize) {
+		this.interactive = newLane("Swiftype-interactive", interactiveThreads, interactiveQueueSize, Process.THREAD_PRIORITY_DEFAULT, new DropOldestPolicy(dropped));
+		this.prefetch = newLane("Swiftype-prefetch", prefetchThreads, prefetchQueueSize, Process.THREAD_PRIORITY_BACKGROUND + Process.THREAD_PRIORITY_MORE_FAVORABLE, new DropOldestPolicy(prefetchDropped));
+		this.background = newLane("Swiftype-background", backgroundThreads, backgroundQueueSize, Process.THREAD_PRIORITY_BACKGROUND, new ThreadPoolExecutor.CallerRunsPolicy());
+		initQueueWaits();
+	}
+	
+	/**
+	 * Use custom executor services for the interactive and background lanes.
+	 * Metrics are only available for lanes backed by a {@link ThreadPoolExecutor}.
+	 */
+	public RequestExecutor(final ExecutorService interactive, final ExecutorService background) {
+		this(interactive, null, background);
+	}
+	
+	/**
+	 * Use custom executor services for all lanes, the default prefetch lane if prefetch is null
+	 */
+	public RequestExecutor(final ExecutorService interactive, final ExecutorService prefetch, final ExecutorService background) {
+		this.interactive = interactive;
+		this.prefetch = (prefetch != null) ? prefetch : newLane("Swiftype-prefetch", DEFAULT_PREFETCH_THREADS, DEFAULT_PREFETCH_QUEUE_SIZE, Process.THREAD_PRIORITY_BACKGROUND + Process.THREAD_PRIORITY_MORE_FAVORABLE, new DropOldestPolicy(prefetchDropped));
+		this.background = background;
+		initQueueWaits();
+	}
+	
+	/**
+	 * @return	Process wide executor used by all engines without a custom executor
+	 */
+	public static synchronized RequestExecutor getDefault() {
+		if (defaultExecutor == null) {
+			defaultExecutor = new RequestExecutor();
+		}
+		return defaultExecutor;
+	}
+	
+	/**
+	 * Run the task on the lane of the {@link QosClass}
+	 */
+	public void execute(final int qosClass, final Runnable task) {
+		switch (qosClass) {
+		case QosClass.INTERACTIVE:
+			executeInteractive(task);
+			break;
+		case QosClass.PREFETCH:
+			executePrefetch(task);
+			break;
+		case QosClass.BACKGROUND:
+			executeBackground(task);
+			break;
+		default:
+			QosClass.check(qosClass);
+		}
+	}
+	
+	public void executeInteractive(final Runnable task) {
+		interactiveSubmitted.incrementAndGet();
+		interactive.execute(new QueuedTask(QosClass.INTERACTIVE, task));
+	}
+	
+	public void executePrefetch(final Runnable task) {
+		prefetchSubmitted.incrementAndGet();
+		prefetch.execute(new QueuedTask(QosClass.PREFETCH, task));
+	}
+	
+	public void executeBackground(final Runnable task) {
+		backgroundSubmitted.incrementAndGet();
+		background.execute(new QueuedTask(QosClass.BACKGROUND, task));
+	}
+	
+	/**
+	 * Run a duplicate of a slow interactive request
+	 * 
+	 * @throws RejectedExecutionException	If too many hedged requests are pending
+	 */
+	public void executeHedge(final Runnable task) {
+		hedge.execute(task);
+	}
+	
+	/**
+	 * Run a short task, e.g. aborting a request, after a delay on the timer
+	 * thread. Tasks must not block.
+	 */
+	public ScheduledFuture<?> schedule(final Runnable task, final long delayMillis) {
+		return timer.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	public void shutdown() {
+		interactive.shutdown();
+		prefetch.shutdown();
+		background.shutdown();
+		hedge.shutdown();
+		timer.shutdown();
+	}
+	
+	public int getInteractiveQueueDepth() {
+		return queueDepth(interactive);
+	}
+	
+	public int getInteractiveThreadCount() {
+		return threadCount(interactive);
+	}
+	
+	public int getInteractiveActiveCount() {
+		return activeCount(interactive);
+	}
+	
+	public long getInteractiveSubmittedCount() {
+		return interactiveSubmitted.get();
+	}
+	
+	public int getPrefetchQueueDepth() {
+		return queueDepth(prefetch);
+	}
+	
+	public int getPrefetchThreadCount() {
+		return threadCount(prefetch);
+	}
+	
+	public int getPrefetchActiveCount() {
+		return activeCount(prefetch);
+	}
+	
+	public long getPrefetchSubmittedCount() {
+		return prefetchSubmitted.get();
+	}
+	
+	/**
+	 * @return	Prefetches dropped because a newer one needed the queue slot
+	 */
+	public long getPrefetchDroppedCount() {
+		return prefetchDropped.get();
+	}
+	
+	public int getBackgroundQueueDepth() {
+		return queueDepth(background);
+	}
+	
+	public int getBackgroundThreadCount() {
+		return threadCount(background);
+	}
+	
+	public int getBackgroundActiveCount() {
+		return activeCount(background);
+	}
+	
+	public long getBackgroundSubmittedCount() {
+		return backgroundSubmitted.get();
+	}
+	
+	/**
+	 * @return	Interactive requests dropped because a newer one needed the queue slot
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+	
+	/**
+	 * @return	Time tasks of the {@link QosClass} waited for a thread of their lane
+	 */
+	public LatencyHistogram getQueueWaits(final int qosClass) {
+		QosClass.check(qosClass);
+		return queueWaits[qosClass];
+	}
+	
+	@Override
+	public String toString() {
+		return "interactive(threads: " + getInteractiveThreadCount() + ", active: " + getInteractiveActiveCount() + ", queued: " + getInteractiveQueueDepth() + ", submitted: " + getInteractiveSubmittedCount() + ", dropped: " + getDroppedCount() + ", wait: " + queueWaits[QosClass.INTERACTIVE] + ") " +
+			   "prefetch(threads: " + getPrefetchThreadCount() + ", active: " + getPrefetchActiveCount() + ", queued: " + getPrefetchQueueDepth() + ", submitted: " + getPrefetchSubmittedCount() + ", dropped: " + getPrefetchDroppedCount() + ", wait: " + queueWaits[QosClass.PREFETCH] + ") " +
+			   "background(threads: " + getBackgroundThreadCount() + ", active: " + getBackgroundActiveCount() + ", queued: " + getBackgroundQueueDepth() + ", submitted: " + getBackgroundSubmittedCount() + ", wait: " + queueWaits[QosClass.BACKGROUND] + ")";
+	}
+	
+	private void initQueueWaits() {
+		for (int qosClass = 0; qosClass < QosClass.COUNT; ++qosClass) {
+			queueWaits[qosClass] = new LatencyHistogram();
+		}
+	}
+	
+	private static ExecutorService newLane(final String name, final int threads, final int queueSize, final int priority, final RejectedExecutionHandler rejectionPolicy) {
+		return new ThreadPoolExecutor(threads,
+									  threads,
+									  0L, TimeUnit.MILLISECONDS,
+									  new LinkedBlockingQueue<Runnable>(queueSize),
+									  new LaneThreadFactory(name, priority),
+									  rejectionPolicy);
+	}
+	
+	private static int queueDepth(final ExecutorService executor) {
+		return (executor instanceof ThreadPoolExecutor) ? ((ThreadPoolExecutor) executor).getQueue().size() : -1;
+	}
+	
+	private static int threadCount(final ExecutorService executor) {
+		return (executor instanceof ThreadPoolExecutor) ? ((ThreadPoolExecutor) executor).getPoolSize() : -1;
+	}
+	
+	private static int activeCount(final ExecutorService executor) {
+		return (executor instanceof ThreadPoolExecutor) ? ((ThreadPoolExecutor) executor).getActiveCount() : -1;
+	}
+	
+	/**
+	 * Task that has to be told when it is dropped from its queue without running
+	 */
+	interface Droppable {
+		void onDropped();
+	}
+	
+	/**
+	 * Search and suggest requests are superseded by newer ones, so the oldest
+	 * pending request is the one to give up when the lane is saturated. The
+	 * dropped task is told, so it can fail its handle.
+	 */
+	private static class DropOldestPolicy implements RejectedExecutionHandler {
+		private final AtomicLong dropped;
+		
+		public DropOldestPolicy(final AtomicLong dropped) {
+			this.dropped = dropped;
+		}
+		
+		@Override
+		public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+			if (!executor.isShutdown()) {
+				final Runnable oldest = executor.getQueue().poll();
+				if (oldest != null) {
+					dropped.incrementAndGet();
+					if (oldest instanceof Droppable) {
+						((Droppable) oldest).onDropped();
+					}
+				}
+				executor.execute(task);
+			}
+		}
+	}
+	
+	/**
+	 * Records how long a task waited in the queue of its lane
+	 */
+	private class QueuedTask implements Runnable, Droppable {
+		private final int qosClass;
+		private final Runnable task;
+		private final long queued = SystemClock.elapsedRealtime();
+		
+		public QueuedTask(final int qosClass, final Runnable task) {
+			this.qosClass = qosClass;
+			this.task = task;
+		}
+		
+		@Override
+		public void run() {
+			queueWaits[qosClass].record(SystemClock.elapsedRealtime() - queued);
+			task.run();
+		}
+		
+		@Override
+		public void onDropped() {
+			if (task instanceof Droppable) {
+				((Droppable) task).onDropped();
+			}
+		}
+	}
+	
+	private static class LaneThreadFactory implements ThreadFactory {
+		private final AtomicInteger threadCount = new AtomicInteger();
+		private final String name;
+		private final int priority;
+		
+		public LaneThreadFactory(final String name, final int priority) {
+			this.name = name;
+			this.priority = priority;
+		}
+		
+		@Override
+		public Thread newThread(final Runnable task) {
+			final Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Process.setThreadPriority(priority);
+					task.run();
+				}
+			}, name + "-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
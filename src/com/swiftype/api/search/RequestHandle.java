@@ -0,0 +1,134 @@
+package com.swiftype.api.search;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handle of a search or suggest request started by an {@link Engine}. It
+ * can cancel exactly this request, wait for it and notify callbacks once it
+ * completed, failed or was cancelled. A cancelled request doesn't call its
+ * handler anymore, even if its response was already received.
+ */
+public class RequestHandle {
+	public static final int PENDING = 0;
+	public static final int COMPLETED = 1;
+	public static final int FAILED = 2;
+	public static final int CANCELLED = 3;
+	
+	private final TransportRequest request;
+	private final CountDownLatch done = new CountDownLatch(1);
+	private final List<Callback> callbacks = new ArrayList<Callback>(1);
+	private volatile int state = PENDING;
+	
+	RequestHandle(final TransportRequest request) {
+		this.request = request;
+	}
+	
+	/**
+	 * @return	Handle of a request that could not be started
+	 */
+	static RequestHandle failed(final TransportRequest request) {
+		final RequestHandle handle = new RequestHandle(request);
+		handle.fail();
+		return handle;
+	}
+	
+	TransportRequest getRequest() {
+		return request;
+	}
+	
+	public String getUrl() {
+		return (request == null) ? null : request.getUrl();
+	}
+	
+	/**
+	 * @return	One of PENDING, COMPLETED, FAILED or CANCELLED
+	 */
+	public int getState() {
+		return state;
+	}
+	
+	public boolean isDone() {
+		return state != PENDING;
+	}
+	
+	public boolean isCancelled() {
+		return state == CANCELLED;
+	}
+	
+	/**
+	 * Abort the request and skip any remaining parsing and handler calls
+	 * 
+	 * @return	False if the request was already done
+	 */
+	public boolean cancel() {
+		if (!finish(CANCELLED)) {
+			return false;
+		}
+		if (request != null) {
+			request.abort();
+		}
+		return true;
+	}
+	
+	/**
+	 * Wait until the request is done
+	 * 
+	 * @return	False if the request is still pending after the timeout
+	 */
+	public boolean await(final long timeoutMillis) throws InterruptedException {
+		return done.await(timeoutMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Add a callback that is called once the request is done, right away if
+	 * it is done already. Callbacks are called on the thread finishing the
+	 * request and must not block.
+	 */
+	public void addCallback(final Callback callback) {
+		synchronized (this) {
+			if (state == PENDING) {
+				callbacks.add(callback);
+				return;
+			}
+		}
+		callback.onDone(this);
+	}
+	
+	boolean complete() {
+		return finish(COMPLETED);
+	}
+	
+	boolean fail() {
+		return finish(FAILED);
+	}
+	
+	private boolean finish(final int finalState) {
+		final List<Callback> pending;
+		synchronized (this) {
+			if (state != PENDING) {
+				return false;
+			}
+			state = finalState;
+			pending = new ArrayList<Callback>(callbacks);
+			callbacks.clear();
+		}
+		done.countDown();
+		for (final Callback callback : pending) {
+			callback.onDone(this);
+		}
+		return true;
+	}
+	
+	@Override
+	public String toString() {
+		final String[] names = { "pending", "completed", "failed", "cancelled" };
+		return names[state] + ": " + getUrl();
+	}
+	
+	public interface Callback {
+		public void onDone(final RequestHandle handle);
+	}
+}
@@ -0,0 +1,42 @@
+package com.swiftype.api.search;
+
+/**
+ * Validators of an API response, used to check whether a cached response is
+ * still current. Besides the HTTP validators (ETag and Last-Modified) the
+ * hash of the response body is kept for APIs that don't send them.
+ */
+public class ResponseValidator {
+	private final String etag;
+	private final String lastModified;
+	private final String bodyHash;
+	
+	/**
+	 * @param etag			ETag header or null
+	 * @param lastModified	Last-Modified header or null
+	 * @param bodyHash		Hash of the decoded response body or null
+	 */
+	public ResponseValidator(final String etag, final String lastModified, final String bodyHash) {
+		this.etag = etag;
+		this.lastModified = lastModified;
+		this.bodyHash = bodyHash;
+	}
+	
+	public String getEtag() {
+		return etag;
+	}
+	
+	public String getLastModified() {
+		return lastModified;
+	}
+	
+	public String getBodyHash() {
+		return bodyHash;
+	}
+	
+	/**
+	 * @return	True if both responses had the same body
+	 */
+	public boolean hasSameBody(final ResponseValidator other) {
+		return other != null && bodyHash != null && bodyHash.equals(other.bodyHash);
+	}
+}
@@ -1,138 +1,593 @@
 package com.swiftype.api.search;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.InterruptedIOException;
+import java.io.PushbackInputStream;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
-import org.apache.http.Header;
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.HttpStatus;
-import org.apache.http.client.HttpRequestRetryHandler;
-import org.apache.http.client.HttpResponseException;
-import org.apache.http.client.ResponseHandler;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.client.methods.HttpUriRequest;
-import org.apache.http.conn.ClientConnectionManager;
-import org.apache.http.conn.scheme.PlainSocketFactory;
-import org.apache.http.conn.scheme.Scheme;
-import org.apache.http.conn.scheme.SchemeRegistry;
-import org.apache.http.conn.ssl.SSLSocketFactory;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpParams;
-import org.apache.http.params.HttpProtocolParams;
-import org.apache.http.protocol.ExecutionContext;
-import org.apache.http.protocol.HttpContext;
-
+import android.net.Uri;
+import android.os.Build;
+import android.os.SystemClock;
 import android.util.Log;
 
 public class RestConnection {
 	private static final String LOG_ID = RestConnection.class.getSimpleName();
 	
-	private static final String API_HOST = "http://api.swiftype.com";
-	private static final String BASE_URL = API_HOST + "/api/v1/public/";
-	private static final DefaultHttpClient CLIENT;
+	private static final String GZIP = "gzip";
+	private static final String DEFLATE = "deflate";
+	private static final String UTF_8 = "UTF-8";
 	
-	static {
-		final SchemeRegistry schemeRegistry = new SchemeRegistry();
-		schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
-		schemeRegistry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
-		final HttpParams params = new BasicHttpParams();
-		final ClientConnectionManager connectionManager = new ThreadSafeClientConnManager(params, schemeRegistry);
-
-		CLIENT = new DefaultHttpClient(connectionManager, params);
-		CLIENT.setHttpRequestRetryHandler(new HttpRequestRetryHandler() {
-			
-			@Override
-			public boolean retryRequest(IOException exception, int executionCount, HttpContext context) {
-				if (executionCount >= 3) {
-					return false;
-				}
-				
-				HttpUriRequest request = (HttpUriRequest) context.getAttribute(ExecutionContext.HTTP_REQUEST);
-				if (exception instanceof InterruptedIOException && !request.isAborted()) {
-					return true;
-				}
-				
-				return false;
+	/**
+	 * Upper bound for the expected size of a response, to presize its buffer
+	 */
+	private static final int MAX_EXPECTED_CHARS = 256 * 1024;
+	
+	/**
+	 * Typical size ratio of compressed JSON responses
+	 */
+	private static final int COMPRESSION_RATIO = 4;
+	private static final int HTTP_NOT_MODIFIED = 304;
+	private static final int HTTP_UNSUPPORTED_MEDIA_TYPE = 415;
+	
+	private static Transport[] defaultTransports;
+	
+	private final Transport[] transports;
+	private final LatencyHistogram[] latencies = new LatencyHistogram[QosClass.COUNT];
+	private final String baseUrl;
+	private final RetryPolicy retryPolicy;
+	private final BufferPool bufferPool = BufferPool.getDefault();
+	private final boolean compressRequests;
+	private final int compressionThreshold;
+	private final ConcurrentHashMap<String, Boolean> uncompressedHosts = new ConcurrentHashMap<String, Boolean>();
+	private final AtomicLong bodyBytes = new AtomicLong();
+	private final AtomicLong sentBodyBytes = new AtomicLong();
+	private final AtomicLong sentBodies = new AtomicLong();
+	private final ConcurrentHashMap<String, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<String, CircuitBreaker>();
+	private final AtomicLong retries = new AtomicLong();
+	private final NetworkQualityEstimator networkQuality = new NetworkQualityEstimator();
+	
+	/**
+	 * Connection to the Swiftype API using the shared default transports
+	 */
+	public RestConnection() {
+		this(getDefaultTransports(), TransportConfig.DEFAULT, RetryPolicy.DEFAULT);
+	}
+	
+	/**
+	 * Connection with its own transports for the platform, e.g. to use a
+	 * different host, pool size or timeouts
+	 */
+	public RestConnection(final TransportConfig config) {
+		this(newPlatformTransports(config), config, RetryPolicy.DEFAULT);
+	}
+	
+	public RestConnection(final Transport transport, final TransportConfig config) {
+		this(transport, config, RetryPolicy.DEFAULT);
+	}
+	
+	/**
+	 * Connection sending the requests of all QoS classes with the same transport
+	 */
+	public RestConnection(final Transport transport, final TransportConfig config, final RetryPolicy retryPolicy) {
+		this(new Transport[] { transport, transport, transport }, config, retryPolicy);
+	}
+	
+	/**
+	 * @param transports	Transport of each {@link QosClass}
+	 */
+	public RestConnection(final Transport[] transports, final TransportConfig config, final RetryPolicy retryPolicy) {
+		if (transports.length != QosClass.COUNT) {
+			throw new IllegalArgumentException("Expected a transport per QoS class.");
+		}
+		this.transports = transports.clone();
+		this.baseUrl = config.getBaseUrl();
+		this.retryPolicy = retryPolicy;
+		this.compressRequests = config.isCompressRequests();
+		this.compressionThreshold = config.getCompressionThreshold();
+		for (int qosClass = 0; qosClass < QosClass.COUNT; ++qosClass) {
+			latencies[qosClass] = new LatencyHistogram();
+		}
+	}
+	
+	public static Transport getDefaultTransport() {
+		return getDefaultTransport(QosClass.INTERACTIVE);
+	}
+	
+	/**
+	 * @return	Shared transport of the {@link QosClass}
+	 */
+	public static Transport getDefaultTransport(final int qosClass) {
+		QosClass.check(qosClass);
+		return getDefaultTransports()[qosClass];
+	}
+	
+	private static synchronized Transport[] getDefaultTransports() {
+		if (defaultTransports == null) {
+			defaultTransports = newPlatformTransports(TransportConfig.DEFAULT);
+		}
+		return defaultTransports;
+	}
+	
+	/**
+	 * @return	The faster HTTP client available on this platform
+	 */
+	public static Transport newPlatformTransport(final TransportConfig config) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
+			return new UrlConnectionTransport(config);
+		}
+		return new HttpClientTransport(config);
+	}
+	
+	/**
+	 * @return	A transport for each {@link QosClass}, with its own connection pool if the platform client is {@link HttpClientTransport}
+	 */
+	public static Transport[] newPlatformTransports(final TransportConfig config) {
+		final Transport[] transports = new Transport[QosClass.COUNT];
+		for (int qosClass = 0; qosClass < QosClass.COUNT; ++qosClass) {
+			transports[qosClass] = newPlatformTransport(config.forQosClass(qosClass));
+		}
+		return transports;
+	}
+	
+	public Transport getTransport() {
+		return getTransport(QosClass.INTERACTIVE);
+	}
+	
+	public Transport getTransport(final int qosClass) {
+		QosClass.check(qosClass);
+		return transports[qosClass];
+	}
+	
+	/**
+	 * @return	Time until the response headers arrived of the attempts of a {@link QosClass}
+	 */
+	public LatencyHistogram getLatencies(final int qosClass) {
+		QosClass.check(qosClass);
+		return latencies[qosClass];
+	}
+	
+	/**
+	 * @return	Link quality estimated from the responses of this connection
+	 */
+	public NetworkQualityEstimator getNetworkQuality() {
+		return networkQuality;
+	}
+	
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+	
+	public RetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+	
+	/**
+	 * @return	Request body bytes before compression, for all attempts
+	 */
+	public long getBodyBytes() {
+		return bodyBytes.get();
+	}
+	
+	/**
+	 * @return	Request body bytes actually sent, for all attempts
+	 */
+	public long getSentBodyBytes() {
+		return sentBodyBytes.get();
+	}
+	
+	/**
+	 * @return	Number of request bodies sent
+	 */
+	public long getSentBodyCount() {
+		return sentBodies.get();
+	}
+	
+	/**
+	 * @return	Number of requests sent again after a failed attempt
+	 */
+	public long getRetryCount() {
+		return retries.get();
+	}
+	
+	/**
+	 * @return	Circuit breaker of the endpoint (url without query)
+	 */
+	public CircuitBreaker getCircuitBreaker(final String endpoint) {
+		CircuitBreaker breaker = circuitBreakers.get(endpoint);
+		if (breaker == null) {
+			final CircuitBreaker newBreaker = new CircuitBreaker(endpoint);
+			breaker = circuitBreakers.putIfAbsent(endpoint, newBreaker);
+			if (breaker == null) {
+				breaker = newBreaker;
 			}
-		});
-		HttpProtocolParams.setUserAgent(CLIENT.getParams(), "Swiftype Android");
+		}
+		return breaker;
+	}
+	
+	/**
+	 * @return	Circuit breakers of all endpoints used so far
+	 */
+	public Collection<CircuitBreaker> getCircuitBreakers() {
+		return circuitBreakers.values();
 	}
 	
-	public HttpUriRequest get(final String requestUri) {
-		final HttpUriRequest request = new HttpGet(BASE_URL + requestUri);
+	public TransportRequest get(final String requestUri) {
+		final TransportRequest request = new TransportRequest(TransportRequest.GET, baseUrl + requestUri, null);
 		request.setHeader("Accept-Encoding", "gzip,deflate");
 		return request;
 	}
 	
-	public HttpPost post(final String requestUri, final String body) {
-		HttpPost request = new HttpPost(BASE_URL + requestUri);
+	public TransportRequest post(final String requestUri, final String body) {
+		final TransportRequest request;
 		try {
-			StringEntity entity = new StringEntity(body, "UTF-8");
-			request.setEntity(entity);
-			request.setHeader("Content-type", "application/json");
-			request.setHeader("Accept-Encoding", "gzip,deflate");
+			request = new TransportRequest(TransportRequest.POST, baseUrl + requestUri, body.getBytes(UTF_8));
 		} catch (UnsupportedEncodingException e) {
 			throw new IllegalArgumentException("Invalid encoding for options.");
 		}
+		request.setHeader("Content-type", "application/json");
+		request.setHeader("Accept-Encoding", "gzip,deflate");
 		return request;
 	}
 	
-	public String execute(final HttpUriRequest request) {
-		ResponseHandler<String> responseHandler = new GzipStringResponseHandler();
-
-		String response = null;
+	public String execute(final TransportRequest request) {
+		String answer = null;
+		TransportResponse response = null;
 		try {
-			response = CLIENT.execute(request, responseHandler);
-		} catch (HttpResponseException e) {
-			Log.i(LOG_ID, e.getMessage());
+			response = open(request);
+			if (isSuccessful(request, response)) {
+				answer = readContent(response);
+			}
 		} catch (IOException e) {
 			Log.i(LOG_ID, "Aborted: " + e.getMessage());
+		} finally {
+			close(response);
 		}
-		return response;
+		return answer;
 	}
 	
-	public class GzipStringResponseHandler implements ResponseHandler<String> {
-		private static final String GZIP = "gzip";
-
-		public String handleResponse(HttpResponse response) throws IOException {
-			String answer = null;
-			
-			if (response.getStatusLine().getStatusCode() >= 300) {
-				return answer;
+	/**
+	 * Make the request conditional on the cached response having changed
+	 */
+	public TransportRequest conditional(final TransportRequest request, final ResponseValidator validator) {
+		if (validator != null) {
+			if (validator.getEtag() != null) {
+				request.setHeader("If-None-Match", validator.getEtag());
 			}
+			if (validator.getLastModified() != null) {
+				request.setHeader("If-Modified-Since", validator.getLastModified());
+			}
+		}
+		return request;
+	}
+	
+	/**
+	 * Execute the request and hand the decoded response body to the handler
+	 * while it is still being received.
+	 *
+	 * @return	Validator of the consumed response or null if the request failed
+	 * or the response was not modified
+	 */
+	public ResponseValidator execute(final TransportRequest request, final StreamHandler handler) {
+		ResponseValidator validator = null;
+		TransportResponse response = null;
+		try {
+			response = open(request);
+			validator = consume(request, response, handler);
+		} catch (IOException e) {
+			Log.i(LOG_ID, "Aborted: " + e.getMessage());
+		} finally {
+			close(response);
+		}
+		return validator;
+	}
+	
+	/**
+	 * Send the request and wait for the response headers. Failed attempts are
+	 * retried according to the retry policy, unless the circuit breaker of
+	 * the endpoint is open. The caller has to close the response.
+	 */
+	public TransportResponse open(final TransportRequest request) throws IOException {
+		final CircuitBreaker breaker = getCircuitBreaker(endpoint(request));
+		final String host = Uri.parse(request.getUrl()).getHost();
+		compressBody(request, host);
+		int attempt = 0;
+		while (true) {
+			if (!breaker.allowRequest()) {
+				throw new IOException("Circuit open for " + breaker.getEndpoint());
+			}
+			++attempt;
 			
-			final HttpEntity httpEntity = response.getEntity();
-			final Header contentEncoding = response.getFirstHeader("Content-Encoding");
-			
-			InputStream in = httpEntity.getContent();
-			if (contentEncoding != null && contentEncoding.getValue().equalsIgnoreCase(GZIP)) {
-				try {
-					in = new GZIPInputStream(in);
-				} catch (IllegalStateException e) {
-					// ignore
+			final TransportResponse response;
+			try {
+				countBody(request);
+				final long start = SystemClock.elapsedRealtime();
+				response = transports[request.getQosClass()].execute(request);
+				final long latency = SystemClock.elapsedRealtime() - start;
+				latencies[request.getQosClass()].record(latency);
+				networkQuality.recordLatency(latency);
+			} catch (IOException e) {
+				if (request.isAborted()) {
+					breaker.recordAborted();
+					throw e;
+				}
+				breaker.recordFailure();
+				if (!awaitRetry(request, attempt, null)) {
+					throw e;
 				}
+				continue;
 			}
 			
-			final BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-			
-			final StringBuilder sb = new StringBuilder();
-			String line;
-			while ((line = reader.readLine()) != null) {
-				sb.append(line);
+			if (isCompressionRejected(request, response)) {
+				Log.i(LOG_ID, "Compressed request bodies rejected by " + host + ", sending uncompressed");
+				uncompressedHosts.put(host, Boolean.TRUE);
+				request.setUncompressedBody();
+				response.close();
+				--attempt;
+				continue;
+			}
+			if (!retryPolicy.isRetryable(response.getStatusCode())) {
+				breaker.recordSuccess();
+				return response;
 			}
-			answer = sb.toString();
+			breaker.recordFailure();
+			if (!awaitRetry(request, attempt, response.getHeader("Retry-After"))) {
+				return response;
+			}
+			response.close();
+		}
+	}
+	
+	/**
+	 * @return	False if the request must not be sent again
+	 */
+	private boolean awaitRetry(final TransportRequest request, final int attempt, final String retryAfter) {
+		if (!retryPolicy.canRetry(attempt)) {
+			return false;
+		}
+		final long delay = retryPolicy.getDelay(attempt, retryAfter);
+		if (delay < 0) {
+			Log.i(LOG_ID, "Retry-After too long, giving up: " + request.getUrl());
+			return false;
+		}
+		Log.i(LOG_ID, "Retry " + attempt + " in " + delay + "ms: " + request.getUrl());
+		retries.incrementAndGet();
+		return request.awaitRetry(delay);
+	}
+	
+	private void compressBody(final TransportRequest request, final String host) {
+		final byte[] body = request.getBody();
+		if (!compressRequests || body == null || request.isBodyCompressed() || body.length < compressionThreshold || uncompressedHosts.containsKey(host)) {
+			return;
+		}
+		try {
+			final ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 2);
+			final GZIPOutputStream gzip = new GZIPOutputStream(out);
+			gzip.write(body);
+			gzip.close();
+			if (out.size() < body.length) {
+				Log.i(LOG_ID, "Compressed request body from " + body.length + " to " + out.size() + " bytes");
+				request.setCompressedBody(out.toByteArray());
+			}
+		} catch (IOException e) {
+			Log.i(LOG_ID, "Couldn't compress request body: " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Servers that don't support compressed bodies say so with 415. Other
+	 * client errors may have nothing to do with the encoding, so they don't
+	 * turn compression off for the host.
+	 */
+	private static boolean isCompressionRejected(final TransportRequest request, final TransportResponse response) {
+		return request.isBodyCompressed() && response.getStatusCode() == HTTP_UNSUPPORTED_MEDIA_TYPE;
+	}
+	
+	private void countBody(final TransportRequest request) {
+		final byte[] body = request.getBody();
+		if (body != null) {
+			sentBodies.incrementAndGet();
+			sentBodyBytes.addAndGet(body.length);
+			bodyBytes.addAndGet(request.getUncompressedBody().length);
+		}
+	}
+	
+	private static String endpoint(final TransportRequest request) {
+		final String url = request.getUrl();
+		final int query = url.indexOf('?');
+		return (query == -1) ? url : url.substring(0, query);
+	}
+	
+	/**
+	 * Hand the decoded body of an opened response to the handler
+	 * 
+	 * @return	Validator of the consumed response or null if the request failed
+	 * or the response was not modified
+	 */
+	public ResponseValidator consume(final TransportRequest request, final TransportResponse response, final StreamHandler handler) throws IOException {
+		if (response.getStatusCode() == HTTP_NOT_MODIFIED) {
+			handler.handleNotModified();
+			return null;
+		} else if (!isSuccessful(request, response)) {
+			return null;
+		}
+		
+		final MessageDigest digest = newDigest();
+		final InputStream in = (digest == null) ? openContent(response) : new DigestInputStream(openContent(response), digest);
+		final Reader reader = new Utf8StreamReader(in, bufferPool);
+		final byte[] rest = bufferPool.acquireBytes();
+		try {
+			handler.handleStream(reader);
 			
-			return answer;
+			// the hash has to cover the whole body, even if the handler stopped early
+			while (in.read(rest) != -1) {
+				// drain
+			}
+		} finally {
+			bufferPool.release(rest);
+			reader.close();
+		}
+		return new ResponseValidator(response.getHeader("ETag"),
+									 response.getHeader("Last-Modified"),
+									 (digest == null) ? null : new BigInteger(1, digest.digest()).toString(16));
+	}
+	
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			return null;
+		}
+	}
+	
+	private boolean isSuccessful(final TransportRequest request, final TransportResponse response) {
+		final int statusCode = response.getStatusCode();
+		if (statusCode >= 300) {
+			Log.i(LOG_ID, "Status " + statusCode + " for " + request.getUrl());
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Read the whole decoded body into a string
+	 */
+	private String readContent(final TransportResponse response) throws IOException {
+		final Reader reader = new Utf8StreamReader(openContent(response), bufferPool);
+		final char[] buffer = bufferPool.acquireChars();
+		try {
+			final StringBuilder sb = new StringBuilder(expectedChars(response));
+			int count;
+			while ((count = reader.read(buffer, 0, buffer.length)) != -1) {
+				sb.append(buffer, 0, count);
+			}
+			return sb.toString();
+		} finally {
+			bufferPool.release(buffer);
+			reader.close();
+		}
+	}
+	
+	/**
+	 * UTF-8 never needs more chars than bytes, so Content-Length is an upper
+	 * bound for uncompressed responses.
+	 */
+	private static int expectedChars(final TransportResponse response) {
+		final long contentLength = response.getContentLength();
+		if (contentLength <= 0) {
+			return BufferPool.BUFFER_SIZE;
 		}
+		final long expected = (response.getHeader("Content-Encoding") == null) ? contentLength : contentLength * COMPRESSION_RATIO;
+		return (int) Math.min(expected, MAX_EXPECTED_CHARS);
+	}
+	
+	private InputStream openContent(final TransportResponse response) throws IOException {
+		final String contentEncoding = response.getHeader("Content-Encoding");
+		
+		InputStream in = new MeteredInputStream(response.getBody());
+		if (contentEncoding == null) {
+			return in;
+		} else if (contentEncoding.equalsIgnoreCase(GZIP)) {
+			in = new GZIPInputStream(in);
+		} else if (contentEncoding.equalsIgnoreCase(DEFLATE)) {
+			in = openDeflate(in);
+		}
+		return in;
+	}
+	
+	/**
+	 * "deflate" is meant to be zlib wrapped, but some servers send raw
+	 * deflate data. The zlib header is recognized by its checksum.
+	 */
+	private static InputStream openDeflate(final InputStream body) throws IOException {
+		final PushbackInputStream in = new PushbackInputStream(body, 2);
+		final byte[] header = new byte[2];
+		int count = 0;
+		while (count < header.length) {
+			final int read = in.read(header, count, header.length - count);
+			if (read == -1) {
+				break;
+			}
+			count += read;
+		}
+		in.unread(header, 0, count);
+		
+		final int cmf = header[0] & 0xff;
+		final int flg = header[1] & 0xff;
+		final boolean zlibWrapped = count == 2 && (cmf & 0x0f) == 8 && (cmf * 256 + flg) % 31 == 0;
+		final Inflater inflater = new Inflater(!zlibWrapped);
+		return new InflaterInputStream(in, inflater) {
+			@Override
+			public void close() throws IOException {
+				super.close();
+				// a custom inflater is not released by the stream
+				inflater.end();
+			}
+		};
+	}
+	
+	private static void close(final TransportResponse response) {
+		if (response != null) {
+			response.close();
+		}
+	}
+	
+	/**
+	 * Measures the throughput of a response body as received, once it was
+	 * read completely
+	 */
+	private class MeteredInputStream extends FilterInputStream {
+		private final long start = SystemClock.elapsedRealtime();
+		private long bytes = 0;
+		private boolean recorded = false;
+		
+		public MeteredInputStream(final InputStream in) {
+			super(in);
+		}
+		
+		@Override
+		public int read() throws IOException {
+			final int b = super.read();
+			count((b == -1) ? -1 : 1);
+			return b;
+		}
+		
+		@Override
+		public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+			final int count = super.read(buffer, offset, length);
+			count(count);
+			return count;
+		}
+		
+		private void count(final int count) {
+			if (count > 0) {
+				bytes += count;
+			} else if (count == -1 && !recorded) {
+				recorded = true;
+				networkQuality.recordThroughput(bytes, SystemClock.elapsedRealtime() - start);
+			}
+		}
+	}
+	
+	public interface StreamHandler {
+		public void handleStream(final Reader reader) throws IOException;
+		
+		/**
+		 * The response for the validators of a conditional request is unchanged
+		 */
+		public void handleNotModified();
 	}
 }
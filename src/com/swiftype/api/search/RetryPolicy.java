@@ -0,0 +1,137 @@
+package com.swiftype.api.search;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Decides whether and when a failed API request is sent again. Delays grow
+ * exponentially with random jitter, so clients that failed at the same time
+ * don't retry at the same time. A Retry-After header of the server is
+ * honored as long as it doesn't exceed the maximum delay.
+ */
+public class RetryPolicy {
+	public static final int HTTP_TOO_MANY_REQUESTS = 429;
+	
+	/**
+	 * Requests are only sent once
+	 */
+	public static final RetryPolicy NONE = new Builder().maxAttempts(1).build();
+	public static final RetryPolicy DEFAULT = new Builder().build();
+	
+	private static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
+	
+	private final int maxAttempts;
+	private final long baseDelay;
+	private final long maxDelay;
+	private final Random random = new Random();
+	
+	private RetryPolicy(final Builder builder) {
+		maxAttempts = builder.maxAttempts;
+		baseDelay = builder.baseDelay;
+		maxDelay = builder.maxDelay;
+	}
+	
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+	
+	/**
+	 * @param attempt	Number of attempts made so far, starting at 1
+	 */
+	public boolean canRetry(final int attempt) {
+		return attempt < maxAttempts;
+	}
+	
+	/**
+	 * @return	True for server errors and throttled requests
+	 */
+	public boolean isRetryable(final int statusCode) {
+		return statusCode >= 500 || statusCode == HTTP_TOO_MANY_REQUESTS;
+	}
+	
+	/**
+	 * @param attempt		Number of attempts made so far, starting at 1
+	 * @param retryAfter	Value of the Retry-After header or null
+	 * @return				Milliseconds to wait before the next attempt, -1 if the server asks to wait longer than allowed
+	 */
+	public long getDelay(final int attempt, final String retryAfter) {
+		final long serverDelay = parseRetryAfter(retryAfter);
+		if (serverDelay > maxDelay) {
+			return -1;
+		} else if (serverDelay >= 0) {
+			return serverDelay;
+		}
+		
+		// full jitter: uniformly between 0 and the exponential delay
+		final long exponentialDelay = Math.min(maxDelay, baseDelay << Math.min(attempt - 1, 20));
+		synchronized (random) {
+			return (long) (random.nextDouble() * exponentialDelay);
+		}
+	}
+	
+	/**
+	 * @return	Milliseconds to wait or -1 if the header is missing or invalid
+	 */
+	static long parseRetryAfter(final String retryAfter) {
+		if (retryAfter == null) {
+			return -1;
+		}
+		final String value = retryAfter.trim();
+		try {
+			return Math.max(0, Long.parseLong(value) * 1000);
+		} catch (NumberFormatException e) {
+			// not delay seconds, but an HTTP date
+		}
+		try {
+			final Date date = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US).parse(value);
+			return Math.max(0, date.getTime() - System.currentTimeMillis());
+		} catch (ParseException e) {
+			return -1;
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return "attempts: " + maxAttempts + ", delay: " + baseDelay + "-" + maxDelay + "ms";
+	}
+	
+	public static class Builder {
+		private int maxAttempts = 3;
+		private long baseDelay = 250;
+		private long maxDelay = 4000;
+		
+		/**
+		 * @param maxAttempts	Total number of attempts including the first one
+		 */
+		public Builder maxAttempts(final int maxAttempts) {
+			if (maxAttempts < 1) {
+				throw new IllegalArgumentException();
+			}
+			this.maxAttempts = maxAttempts;
+			return this;
+		}
+		
+		/**
+		 * @param baseDelay		Maximum milliseconds before the first retry, doubled for every further retry
+		 */
+		public Builder baseDelay(final long baseDelay) {
+			this.baseDelay = baseDelay;
+			return this;
+		}
+		
+		/**
+		 * @param maxDelay		Maximum milliseconds between two attempts
+		 */
+		public Builder maxDelay(final long maxDelay) {
+			this.maxDelay = maxDelay;
+			return this;
+		}
+		
+		public RetryPolicy build() {
+			return new RetryPolicy(this);
+		}
+	}
+}
@@ -11,12 +11,14 @@ import org.json.JSONObject;
 
 public class SwiftypeQueryOptions {
 	public static final SwiftypeQueryOptions DEFAULT = new Builder().build();
+	private static final String FETCH_FIELDS = "fetch_fields";
+	private static final String PER_PAGE = "per_page";
 	
 	private final JSONObject options;
 
 	private SwiftypeQueryOptions(final Builder builder) {
 		options = new JSONObject();
-		mapToJson(options, "fetch_fields", builder.fetchFields);
+		mapToJson(options, FETCH_FIELDS, builder.fetchFields);
 		mapToJson(options, "search_fields", builder.searchFields);
 		mapToJson(options, "filters", builder.filters);
 		mapToJson(options, "functional_boosts", builder.functionalBoosts);
@@ -27,7 +29,7 @@ public class SwiftypeQueryOptions {
 		arrayToJson(options, "document_types", builder.documentTypes);
 
 		intToJson(options, "page", builder.page);
-		intToJson(options, "per_page", builder.per_page);
+		intToJson(options, PER_PAGE, builder.per_page);
 	}
 	
 	private SwiftypeQueryOptions(final JSONObject options) {
@@ -44,6 +46,59 @@ public class SwiftypeQueryOptions {
 		return new SwiftypeQueryOptions(options); 
 	}
 	
+	public boolean hasFetchFields() {
+		return options.has(FETCH_FIELDS);
+	}
+	
+	/**
+	 * Copy these options and restrict the returned fields per document type
+	 * 
+	 * @param fetchFields	Fields to fetch by document type name
+	 */
+	public SwiftypeQueryOptions withFetchFields(final Map<String, String[]> fetchFields) {
+		try {
+			final JSONObject copy = new JSONObject(options.toString());
+			final JSONObject fields = new JSONObject();
+			for (final Map.Entry<String, String[]> documentType : fetchFields.entrySet()) {
+				final JSONArray names = new JSONArray();
+				for (final String name : documentType.getValue()) {
+					names.put(name);
+				}
+				fields.put(documentType.getKey(), names);
+			}
+			copy.put(FETCH_FIELDS, fields);
+			return new SwiftypeQueryOptions(copy);
+		} catch (JSONException e) {
+			throw new IllegalArgumentException("Illegal arguments for " + FETCH_FIELDS + " option!");
+		}
+	}
+	
+	/**
+	 * @return	Results per page or -1 for the API default
+	 */
+	public int getPerPage() {
+		return options.optInt(PER_PAGE, -1);
+	}
+	
+	/**
+	 * Copy these options with a different number of results per page
+	 * 
+	 * @param perPage	Results per page, -1 for the API default
+	 */
+	public SwiftypeQueryOptions withPerPage(final int perPage) {
+		try {
+			final JSONObject copy = new JSONObject(options.toString());
+			if (perPage > 0) {
+				copy.put(PER_PAGE, perPage);
+			} else {
+				copy.remove(PER_PAGE);
+			}
+			return new SwiftypeQueryOptions(copy);
+		} catch (JSONException e) {
+			throw new IllegalArgumentException("Illegal arguments for " + PER_PAGE + " option!");
+		}
+	}
+	
 	public JSONObject toJson() {
 		return options;
 	}
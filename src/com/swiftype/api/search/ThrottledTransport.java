@@ -0,0 +1,164 @@
+package com.swiftype.api.search;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link Transport} delaying the responses of another transport, usually a
+ * {@link LoopbackTransport}, to stand in for a slow or fast link. The link
+ * follows a script of profiles, each with a latency until the response
+ * headers and a throughput of the body, that applies to a number of
+ * requests. Used to exercise the {@link NetworkQualityEstimator} and the
+ * {@link NetworkPolicy} without a real network.
+ */
+public class ThrottledTransport implements Transport {
+	/**
+	 * Longest sleep before the abort flag of a request is checked again
+	 */
+	private static final long POLL_INTERVAL = 20;
+	
+	private final Transport transport;
+	private final List<Profile> script = new ArrayList<Profile>();
+	private final AtomicLong requestCount = new AtomicLong();
+	
+	public ThrottledTransport(final Transport transport) {
+		this.transport = transport;
+	}
+	
+	/**
+	 * Append a profile to the script. The last profile applies to all
+	 * further requests.
+	 *
+	 * @param requests			Number of requests the profile applies to
+	 * @param latency			Milliseconds until the response headers arrive
+	 * @param bytesPerSecond	Throughput of the response body, 0 for unlimited
+	 */
+	public synchronized ThrottledTransport then(final int requests, final long latency, final long bytesPerSecond) {
+		if (requests < 1 || latency < 0 || bytesPerSecond < 0) {
+			throw new IllegalArgumentException();
+		}
+		script.add(new Profile(requests, latency, bytesPerSecond));
+		return this;
+	}
+	
+	@Override
+	public TransportResponse execute(final TransportRequest request) throws IOException {
+		final Profile profile = profileFor(requestCount.getAndIncrement());
+		if (profile == null) {
+			return transport.execute(request);
+		}
+		
+		pause(request, profile.latency);
+		final TransportResponse response = transport.execute(request);
+		if (profile.bytesPerSecond == 0) {
+			return response;
+		}
+		
+		return response.withBody(new ThrottledInputStream(request, response.getBody(), profile.bytesPerSecond));
+	}
+	
+	/**
+	 * @return	Number of requests executed by this transport
+	 */
+	public long getRequestCount() {
+		return requestCount.get();
+	}
+	
+	@Override
+	public void shutdown() {
+		transport.shutdown();
+	}
+	
+	private synchronized Profile profileFor(final long request) {
+		long first = 0;
+		for (final Profile profile : script) {
+			first += profile.requests;
+			if (request < first) {
+				return profile;
+			}
+		}
+		return script.isEmpty() ? null : script.get(script.size() - 1);
+	}
+	
+	/**
+	 * Sleep like a slow link, but give up as soon as the request is aborted
+	 */
+	private static void pause(final TransportRequest request, final long millis) throws IOException {
+		final long end = System.currentTimeMillis() + millis;
+		long remaining = millis;
+		while (remaining > 0) {
+			if (request.isAborted()) {
+				throw new IOException("Request aborted");
+			}
+			try {
+				Thread.sleep(Math.min(remaining, POLL_INTERVAL));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted");
+			}
+			remaining = end - System.currentTimeMillis();
+		}
+		if (request.isAborted()) {
+			throw new IOException("Request aborted");
+		}
+	}
+	
+	private static class Profile {
+		private final int requests;
+		private final long latency;
+		private final long bytesPerSecond;
+		
+		public Profile(final int requests, final long latency, final long bytesPerSecond) {
+			this.requests = requests;
+			this.latency = latency;
+			this.bytesPerSecond = bytesPerSecond;
+		}
+	}
+	
+	/**
+	 * Hands out the body no faster than the throughput of the profile
+	 */
+	private static class ThrottledInputStream extends FilterInputStream {
+		private final TransportRequest request;
+		private final long bytesPerSecond;
+		private final long start = System.currentTimeMillis();
+		private long bytes = 0;
+		
+		public ThrottledInputStream(final TransportRequest request, final InputStream in, final long bytesPerSecond) {
+			super(in);
+			this.request = request;
+			this.bytesPerSecond = bytesPerSecond;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			throttle(1);
+			final int b = super.read();
+			if (b != -1) {
+				++bytes;
+			}
+			return b;
+		}
+		
+		@Override
+		public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+			// small chunks keep the pace even
+			final int chunk = (int) Math.max(1, Math.min(length, bytesPerSecond / 10));
+			throttle(chunk);
+			final int count = super.read(buffer, offset, chunk);
+			if (count > 0) {
+				bytes += count;
+			}
+			return count;
+		}
+		
+		private void throttle(final int next) throws IOException {
+			final long due = start + (bytes + next) * 1000 / bytesPerSecond;
+			pause(request, due - System.currentTimeMillis());
+		}
+	}
+}
@@ -0,0 +1,19 @@
+package com.swiftype.api.search;
+
+import java.io.IOException;
+
+/**
+ * HTTP client used by {@link RestConnection} to talk to the API. Implementations
+ * have to be thread safe, as requests are executed concurrently.
+ */
+public interface Transport {
+	/**
+	 * Send the request and return as soon as the response headers are
+	 * available. The caller has to close the returned response.
+	 * 
+	 * @throws IOException	If the request failed or was aborted
+	 */
+	public TransportResponse execute(final TransportRequest request) throws IOException;
+	
+	public void shutdown();
+}
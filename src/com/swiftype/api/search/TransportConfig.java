@@ -0,0 +1,193 @@
+package com.swiftype.api.search;
+
+/**
+ * Connection settings shared by all {@link Transport} implementations
+ */
+public class TransportConfig {
+	public static final TransportConfig DEFAULT = new Builder().build();
+	
+	private final String baseUrl;
+	private final String userAgent;
+	private final int maxConnections;
+	private final int[] qosConnections;
+	private final int connectTimeout;
+	private final int readTimeout;
+	private final boolean compressRequests;
+	private final int compressionThreshold;
+	
+	private TransportConfig(final Builder builder) {
+		baseUrl = builder.baseUrl;
+		userAgent = builder.userAgent;
+		maxConnections = builder.maxConnections;
+		qosConnections = builder.qosConnections.clone();
+		connectTimeout = builder.connectTimeout;
+		readTimeout = builder.readTimeout;
+		compressRequests = builder.compressRequests;
+		compressionThreshold = builder.compressionThreshold;
+	}
+	
+	public String getBaseUrl() {
+		return baseUrl;
+	}
+	
+	public String getUserAgent() {
+		return userAgent;
+	}
+	
+	/**
+	 * @return	Size of the connection pool, only enforced by {@link HttpClientTransport}
+	 */
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+	
+	/**
+	 * @return	Size of the connection pool of the {@link QosClass}, only enforced by {@link HttpClientTransport}
+	 */
+	public int getMaxConnections(final int qosClass) {
+		QosClass.check(qosClass);
+		return qosConnections[qosClass];
+	}
+	
+	/**
+	 * @return	Connections of all QoS classes together
+	 */
+	public int getTotalMaxConnections() {
+		int total = 0;
+		for (final int connections : qosConnections) {
+			total += connections;
+		}
+		return total;
+	}
+	
+	/**
+	 * @return	Config for the transport of a {@link QosClass}, its pool size is the one of the class
+	 */
+	public TransportConfig forQosClass(final int qosClass) {
+		final Builder builder = new Builder();
+		builder.baseUrl = baseUrl;
+		builder.userAgent = userAgent;
+		builder.qosConnections = qosConnections.clone();
+		builder.maxConnections = getMaxConnections(qosClass);
+		builder.connectTimeout = connectTimeout;
+		builder.readTimeout = readTimeout;
+		builder.compressRequests = compressRequests;
+		builder.compressionThreshold = compressionThreshold;
+		return builder.build();
+	}
+	
+	/**
+	 * @return	Connect timeout in milliseconds, 0 for no timeout
+	 */
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+	
+	/**
+	 * @return	Read timeout in milliseconds, 0 for no timeout
+	 */
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+	
+	public boolean isCompressRequests() {
+		return compressRequests;
+	}
+	
+	/**
+	 * @return	Minimum body size in bytes for request bodies to be compressed
+	 */
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+	
+	public static class Builder {
+		private String baseUrl = "http://api.swiftype.com/api/v1/public/";
+		private String userAgent = "Swiftype Android";
+		private int maxConnections = 2;
+		private int[] qosConnections = { 2, 1, 1 };
+		private int connectTimeout = 15 * 1000;
+		private int readTimeout = 20 * 1000;
+		private boolean compressRequests = false;
+		private int compressionThreshold = 1024;
+		
+		/**
+		 * @param baseUrl	API base url including the trailing slash, e.g. to use a local server
+		 */
+		public Builder baseUrl(final String baseUrl) {
+			if (!baseUrl.endsWith("/")) {
+				throw new IllegalArgumentException("Base url must end with a slash.");
+			}
+			this.baseUrl = baseUrl;
+			return this;
+		}
+		
+		public Builder userAgent(final String userAgent) {
+			this.userAgent = userAgent;
+			return this;
+		}
+		
+		/**
+		 * Size of the connection pool of {@link HttpClientTransport}.
+		 * {@link UrlConnectionTransport} uses the process wide pool of
+		 * HttpURLConnection and ignores it.
+		 */
+		public Builder maxConnections(final int maxConnections) {
+			if (maxConnections < 1) {
+				throw new IllegalArgumentException();
+			}
+			this.maxConnections = maxConnections;
+			qosConnections[QosClass.INTERACTIVE] = maxConnections;
+			return this;
+		}
+		
+		/**
+		 * Limit the connections of a {@link QosClass}, e.g. to keep prefetches
+		 * and analytics from using more than one connection. Only enforced by
+		 * {@link HttpClientTransport}, see {@link #maxConnections(int)}.
+		 */
+		public Builder maxConnections(final int qosClass, final int maxConnections) {
+			QosClass.check(qosClass);
+			if (maxConnections < 1) {
+				throw new IllegalArgumentException();
+			}
+			qosConnections[qosClass] = maxConnections;
+			if (qosClass == QosClass.INTERACTIVE) {
+				this.maxConnections = maxConnections;
+			}
+			return this;
+		}
+		
+		public Builder connectTimeout(final int connectTimeout) {
+			this.connectTimeout = connectTimeout;
+			return this;
+		}
+		
+		public Builder readTimeout(final int readTimeout) {
+			this.readTimeout = readTimeout;
+			return this;
+		}
+		
+		/**
+		 * Send request bodies gzip compressed, off by default. Hosts that
+		 * answer 415 Unsupported Media Type are sent uncompressed bodies from
+		 * then on.
+		 */
+		public Builder compressRequests(final boolean compressRequests) {
+			this.compressRequests = compressRequests;
+			return this;
+		}
+		
+		/**
+		 * @param compressionThreshold	Minimum body size in bytes worth compressing
+		 */
+		public Builder compressionThreshold(final int compressionThreshold) {
+			this.compressionThreshold = compressionThreshold;
+			return this;
+		}
+		
+		public TransportConfig build() {
+			return new TransportConfig(this);
+		}
+	}
+}
@@ -0,0 +1,196 @@
+package com.swiftype.api.search;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A single API request independent of the {@link Transport} executing it
+ */
+public class TransportRequest {
+	public static final String GET = "GET";
+	public static final String POST = "POST";
+	
+	private static final String CONTENT_ENCODING = "Content-Encoding";
+	private static final String GZIP = "gzip";
+	
+	private final String method;
+	private final String url;
+	private byte[] body;
+	private byte[] uncompressedBody;
+	private final Map<String, String> headers = new LinkedHashMap<String, String>();
+	private final List<TransportRequest> duplicates = new ArrayList<TransportRequest>(1);
+	private volatile boolean aborted = false;
+	private volatile int qosClass = QosClass.INTERACTIVE;
+	private Cancellable cancellable;
+	
+	public TransportRequest(final String method, final String url, final byte[] body) {
+		this.method = method;
+		this.url = url;
+		this.body = body;
+	}
+	
+	public String getMethod() {
+		return method;
+	}
+	
+	public String getUrl() {
+		return url;
+	}
+	
+	/**
+	 * @return	{@link QosClass} deciding which connection pool sends the request
+	 */
+	public int getQosClass() {
+		return qosClass;
+	}
+	
+	public TransportRequest setQosClass(final int qosClass) {
+		QosClass.check(qosClass);
+		this.qosClass = qosClass;
+		return this;
+	}
+	
+	/**
+	 * @return	Request body as sent or null for requests without body
+	 */
+	public synchronized byte[] getBody() {
+		return body;
+	}
+	
+	/**
+	 * @return	Request body before compression or null for requests without body
+	 */
+	public synchronized byte[] getUncompressedBody() {
+		return (uncompressedBody == null) ? body : uncompressedBody;
+	}
+	
+	public synchronized boolean isBodyCompressed() {
+		return uncompressedBody != null;
+	}
+	
+	/**
+	 * Send the body gzip compressed
+	 */
+	public synchronized void setCompressedBody(final byte[] compressedBody) {
+		if (uncompressedBody == null) {
+			uncompressedBody = body;
+		}
+		body = compressedBody;
+		headers.put(CONTENT_ENCODING, GZIP);
+	}
+	
+	/**
+	 * Send the body uncompressed again, e.g. because the server rejected the compressed one
+	 */
+	public synchronized void setUncompressedBody() {
+		if (uncompressedBody != null) {
+			body = uncompressedBody;
+			uncompressedBody = null;
+			headers.remove(CONTENT_ENCODING);
+		}
+	}
+	
+	public synchronized TransportRequest setHeader(final String name, final String value) {
+		headers.put(name, value);
+		return this;
+	}
+	
+	public synchronized Map<String, String> getHeaders() {
+		return Collections.unmodifiableMap(new LinkedHashMap<String, String>(headers));
+	}
+	
+	/**
+	 * Used by transports to register how a running request is aborted. If the
+	 * request was already aborted, the cancellable is called immediately.
+	 */
+	public void setCancellable(final Cancellable cancellable) {
+		synchronized (this) {
+			if (!aborted) {
+				this.cancellable = cancellable;
+				return;
+			}
+		}
+		cancellable.cancel();
+	}
+	
+	/**
+	 * Create another attempt of this request, e.g. to hedge a slow one.
+	 * Aborting this request aborts the duplicate as well.
+	 */
+	public TransportRequest duplicate() {
+		final TransportRequest duplicate;
+		synchronized (this) {
+			duplicate = new TransportRequest(method, url, getUncompressedBody());
+			duplicate.headers.putAll(headers);
+			duplicate.headers.remove(CONTENT_ENCODING);
+			duplicate.qosClass = qosClass;
+			if (!aborted) {
+				duplicates.add(duplicate);
+				return duplicate;
+			}
+		}
+		duplicate.abort();
+		return duplicate;
+	}
+	
+	/**
+	 * Abort this request and all its duplicates
+	 */
+	public void abort() {
+		final List<TransportRequest> running;
+		synchronized (this) {
+			running = new ArrayList<TransportRequest>(duplicates);
+		}
+		abortAttempt();
+		for (final TransportRequest duplicate : running) {
+			duplicate.abort();
+		}
+	}
+	
+	/**
+	 * Abort only this attempt but not its duplicates, e.g. because a
+	 * duplicate was answered first
+	 */
+	public void abortAttempt() {
+		final Cancellable running;
+		synchronized (this) {
+			aborted = true;
+			running = cancellable;
+			notifyAll();
+		}
+		if (running != null) {
+			running.cancel();
+		}
+	}
+	
+	public boolean isAborted() {
+		return aborted;
+	}
+	
+	/**
+	 * Wait before the request is sent again, returns early if it is aborted
+	 * 
+	 * @return	False if the request was aborted
+	 */
+	public synchronized boolean awaitRetry(final long delayMillis) {
+		final long end = System.currentTimeMillis() + delayMillis;
+		long remaining = delayMillis;
+		while (!aborted && remaining > 0) {
+			try {
+				wait(remaining);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			remaining = end - System.currentTimeMillis();
+		}
+		return !aborted;
+	}
+	
+	public interface Cancellable {
+		public void cancel();
+	}
+}
@@ -0,0 +1,73 @@
+package com.swiftype.api.search;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Response of a {@link Transport}. The body is streamed from the connection
+ * and has to be closed to release it.
+ */
+public class TransportResponse {
+	private static final InputStream EMPTY_BODY = new ByteArrayInputStream(new byte[0]);
+	
+	private final int statusCode;
+	private final Map<String, String> headers = new HashMap<String, String>();
+	private final InputStream body;
+	private final long contentLength;
+	
+	/**
+	 * @param contentLength	Length of the (encoded) body or -1 if unknown
+	 */
+	public TransportResponse(final int statusCode, final InputStream body, final long contentLength) {
+		this.statusCode = statusCode;
+		this.body = (body == null) ? EMPTY_BODY : body;
+		this.contentLength = contentLength;
+	}
+	
+	public int getStatusCode() {
+		return statusCode;
+	}
+	
+	public TransportResponse setHeader(final String name, final String value) {
+		if (name != null) {
+			headers.put(name.toLowerCase(Locale.US), value);
+		}
+		return this;
+	}
+	
+	/**
+	 * @return	First value of the header (case insensitive) or null
+	 */
+	public String getHeader(final String name) {
+		return headers.get(name.toLowerCase(Locale.US));
+	}
+	
+	public InputStream getBody() {
+		return body;
+	}
+	
+	public long getContentLength() {
+		return contentLength;
+	}
+	
+	/**
+	 * @return	Response with the same status and headers but another body, e.g. to wrap its stream
+	 */
+	public TransportResponse withBody(final InputStream body) {
+		final TransportResponse response = new TransportResponse(statusCode, body, contentLength);
+		response.headers.putAll(headers);
+		return response;
+	}
+	
+	public void close() {
+		try {
+			body.close();
+		} catch (IOException e) {
+			// nothing left to release
+		}
+	}
+}
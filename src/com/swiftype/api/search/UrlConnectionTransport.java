@@ -0,0 +1,76 @@
+package com.swiftype.api.search;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link Transport} based on HttpURLConnection, the preferred client since Gingerbread.
+ * HttpURLConnection keeps one keep-alive pool for the whole process, shared
+ * by all QoS classes and all other users of HttpURLConnection. The pool sizes
+ * of the config don't apply, the connections of each class are only limited
+ * by the threads of its lane.
+ */
+public class UrlConnectionTransport implements Transport {
+	private final TransportConfig config;
+	
+	public UrlConnectionTransport(final TransportConfig config) {
+		this.config = config;
+	}
+	
+	@Override
+	public TransportResponse execute(final TransportRequest request) throws IOException {
+		final HttpURLConnection connection = (HttpURLConnection) new URL(request.getUrl()).openConnection();
+		request.setCancellable(new TransportRequest.Cancellable() {
+			@Override
+			public void cancel() {
+				connection.disconnect();
+			}
+		});
+		
+		try {
+			connection.setConnectTimeout(config.getConnectTimeout());
+			connection.setReadTimeout(config.getReadTimeout());
+			connection.setRequestMethod(request.getMethod());
+			connection.setRequestProperty("User-Agent", config.getUserAgent());
+			for (final Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+				connection.setRequestProperty(header.getKey(), header.getValue());
+			}
+			
+			final byte[] body = request.getBody();
+			if (body != null) {
+				connection.setDoOutput(true);
+				connection.setFixedLengthStreamingMode(body.length);
+				final OutputStream out = connection.getOutputStream();
+				try {
+					out.write(body);
+				} finally {
+					out.close();
+				}
+			}
+			
+			final int statusCode = connection.getResponseCode();
+			final InputStream in = (statusCode >= HttpURLConnection.HTTP_BAD_REQUEST) ? connection.getErrorStream() : connection.getInputStream();
+			final TransportResponse response = new TransportResponse(statusCode, in, connection.getContentLength());
+			for (final Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
+				final List<String> values = header.getValue();
+				if (header.getKey() != null && values != null && !values.isEmpty()) {
+					response.setHeader(header.getKey(), values.get(0));
+				}
+			}
+			return response;
+		} catch (IOException e) {
+			connection.disconnect();
+			throw e;
+		}
+	}
+	
+	@Override
+	public void shutdown() {
+		// pooled connections are owned by HttpURLConnection
+	}
+}
@@ -0,0 +1,108 @@
+package com.swiftype.api.search;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Decodes an UTF-8 stream using a pooled byte buffer. Unlike reading lines,
+ * the text is passed on unchanged, including line breaks.
+ */
+public class Utf8StreamReader extends Reader {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	
+	private final InputStream in;
+	private final BufferPool pool;
+	private final CharsetDecoder decoder = UTF_8.newDecoder()
+												.onMalformedInput(CodingErrorAction.REPLACE)
+												.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	private byte[] bytes;
+	private final ByteBuffer byteBuffer;
+	private final char[] single = new char[2];
+	private int singleCount = 0;
+	private boolean endOfInput = false;
+	private boolean flushed = false;
+	
+	public Utf8StreamReader(final InputStream in, final BufferPool pool) {
+		this.in = in;
+		this.pool = pool;
+		bytes = pool.acquireBytes();
+		byteBuffer = ByteBuffer.wrap(bytes);
+		byteBuffer.limit(0);
+	}
+	
+	@Override
+	public int read(final char[] buffer, final int offset, final int length) throws IOException {
+		if (bytes == null) {
+			throw new IOException("Reader closed");
+		}
+		if (length == 0) {
+			return 0;
+		}
+		if (singleCount > 0 || length == 1) {
+			// a surrogate pair doesn't fit into a single char, so decode into a spare buffer
+			if (singleCount == 0) {
+				final int count = decode(single, 0, single.length);
+				if (count == -1) {
+					return -1;
+				}
+				singleCount = count;
+			}
+			buffer[offset] = single[0];
+			single[0] = single[1];
+			--singleCount;
+			return 1;
+		}
+		return decode(buffer, offset, length);
+	}
+	
+	private int decode(final char[] buffer, final int offset, final int length) throws IOException {
+		final CharBuffer out = CharBuffer.wrap(buffer, offset, length);
+		while (true) {
+			if (!flushed) {
+				final CoderResult result = decoder.decode(byteBuffer, out, endOfInput);
+				if (result.isError()) {
+					result.throwException();
+				}
+			}
+			
+			final int decoded = out.position() - offset;
+			if (decoded > 0) {
+				return decoded;
+			}
+			if (endOfInput) {
+				if (!flushed) {
+					decoder.flush(out);
+					flushed = true;
+				}
+				final int remaining = out.position() - offset;
+				return (remaining > 0) ? remaining : -1;
+			}
+			
+			// all complete characters are decoded, read more bytes
+			byteBuffer.compact();
+			final int count = in.read(bytes, byteBuffer.position(), byteBuffer.remaining());
+			if (count == -1) {
+				endOfInput = true;
+			} else {
+				byteBuffer.position(byteBuffer.position() + count);
+			}
+			byteBuffer.flip();
+		}
+	}
+	
+	@Override
+	public void close() throws IOException {
+		if (bytes != null) {
+			pool.release(bytes);
+			bytes = null;
+		}
+		in.close();
+	}
+}